@@ -0,0 +1,206 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.rabbitmq.client.Channel;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted acknowledgement of a single delivery, or of a single element of a coalesced delivery.
+ *
+ * <p>The delivery is acknowledged once every holder of a reference has released it. An element holds a
+ * reference to its delivery, so the delivery is only acknowledged once every element has been settled.</p>
+ */
+final class Acknowledgement {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Acknowledgement.class);
+  private final Target target;
+  private final @Nullable Listener listener;
+  private final AtomicInteger references = new AtomicInteger(1);
+  private final AtomicBoolean settled = new AtomicBoolean();
+
+  /**
+   * Constructs a new acknowledgement.
+   *
+   * @param channel the channel the delivery was received on
+   * @param tag the delivery tag
+   * @param listener a listener invoked once the delivery has been acknowledged or rejected, or {@code null}
+   */
+  Acknowledgement(final Channel channel, final long tag, final @Nullable Listener listener) {
+    this(new Target() {
+      @Override
+      public void acknowledge() throws IOException {
+        channel.basicAck(tag, false);
+      }
+
+      @Override
+      public void reject(final boolean requeue) throws IOException {
+        channel.basicNack(tag, false, requeue);
+      }
+    }, listener);
+  }
+
+  private Acknowledgement(final Target target, final @Nullable Listener listener) {
+    this.target = target;
+    this.listener = listener;
+  }
+
+  /**
+   * Creates an acknowledgement of an element of this delivery, holding a reference to this acknowledgement until
+   * it is settled.
+   *
+   * <p>A rejected element is handed to the rejection, and this delivery is released as if the element had been
+   * acknowledged. If the rejection fails, this delivery is requeued as a whole.</p>
+   *
+   * @param rejection the rejection of the element
+   * @param listener a listener invoked once the element has been acknowledged or rejected, or {@code null}
+   * @return the element acknowledgement
+   */
+  Acknowledgement element(final Rejection rejection, final @Nullable Listener listener) {
+    this.retain();
+    return new Acknowledgement(new Target() {
+      @Override
+      public void acknowledge() {
+        Acknowledgement.this.release();
+      }
+
+      @Override
+      public void reject(final boolean requeue) throws IOException {
+        try {
+          rejection.reject(requeue);
+        } catch(final IOException e) {
+          Acknowledgement.this.reject(true);
+          throw e;
+        }
+        Acknowledgement.this.release();
+      }
+    }, listener);
+  }
+
+  /**
+   * Creates an acknowledgement of this delivery for a holder which settles it independently, holding a reference
+   * to this acknowledgement until it is settled.
+   *
+   * <p>Acknowledging it releases its reference to this delivery, and rejecting it rejects this delivery.</p>
+   *
+   * @param listener a listener invoked once the holder has acknowledged or rejected it
+   * @return the acknowledgement
+   */
+  Acknowledgement hold(final Listener listener) {
+    this.retain();
+    return new Acknowledgement(new Target() {
+      @Override
+      public void acknowledge() {
+        Acknowledgement.this.release();
+      }
+
+      @Override
+      public void reject(final boolean requeue) {
+        Acknowledgement.this.reject(requeue);
+      }
+    }, listener);
+  }
+
+  /**
+   * Acquires an additional reference, deferring the acknowledgement until it is {@link #release() released}.
+   */
+  void retain() {
+    this.references.incrementAndGet();
+  }
+
+  /**
+   * Releases a reference, acknowledging the delivery if it was the last one.
+   */
+  void release() {
+    if(this.references.decrementAndGet() == 0 && this.settled.compareAndSet(false, true)) {
+      try {
+        this.target.acknowledge();
+      } catch(final IOException e) {
+        LOGGER.error("Exception acknowledging delivery", e);
+      }
+      this.settled(true);
+    }
+  }
+
+  /**
+   * Rejects the delivery, regardless of any outstanding references.
+   *
+   * @param requeue if the delivery should be requeued
+   * @return {@code true} if the delivery was rejected, {@code false} if it had already been acknowledged or rejected
+   */
+  boolean reject(final boolean requeue) {
+    if(!this.settled.compareAndSet(false, true)) {
+      return false;
+    }
+    try {
+      this.target.reject(requeue);
+    } catch(final IOException e) {
+      LOGGER.error("Exception rejecting delivery", e);
+    }
+    this.settled(false);
+    return true;
+  }
+
+  private void settled(final boolean acknowledged) {
+    if(this.listener != null) {
+      this.listener.settled(acknowledged);
+    }
+  }
+
+  /**
+   * A listener invoked once a delivery has been settled.
+   */
+  interface Listener {
+    /**
+     * Handles the settlement of a delivery.
+     *
+     * @param acknowledged {@code true} if the delivery was acknowledged, {@code false} if it was rejected
+     */
+    void settled(final boolean acknowledged);
+  }
+
+  /**
+   * Handles the rejection of an element, which cannot be rejected through the broker without rejecting its delivery.
+   */
+  interface Rejection {
+    /**
+     * Rejects an element.
+     *
+     * @param requeue if the element should be requeued
+     * @throws IOException if an exception is encountered while rejecting
+     */
+    void reject(final boolean requeue) throws IOException;
+  }
+
+  private interface Target {
+    void acknowledge() throws IOException;
+
+    void reject(final boolean requeue) throws IOException;
+  }
+}
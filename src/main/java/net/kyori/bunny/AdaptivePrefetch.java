@@ -0,0 +1,192 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.rabbitmq.client.Channel;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tunes the prefetch count of dedicated consumer channels from observed handler latency.
+ *
+ * <p>The prefetch count is adjusted periodically: it is halved when deliveries spend longer waiting to be handled
+ * than being handled, and increased by one when every prefetched delivery was in flight, staying within bounds.
+ * Every channel shares the same prefetch count.</p>
+ */
+final class AdaptivePrefetch {
+  private static final Logger LOGGER = LoggerFactory.getLogger(AdaptivePrefetch.class);
+  private final Bunny bunny;
+  private final String queue;
+  private final int minimum;
+  private final int maximum;
+  private final long interval;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger peak = new AtomicInteger();
+  private final LongAdder completed = new LongAdder();
+  /**
+   * The total time spent handling completed deliveries, in nanoseconds.
+   */
+  private final LongAdder handling = new LongAdder();
+  /**
+   * The total time from receipt to completion of completed deliveries, in nanoseconds.
+   */
+  private final LongAdder sojourn = new LongAdder();
+  private volatile int prefetch;
+  private final Set<Channel> channels = new CopyOnWriteArraySet<>();
+  private @Nullable ScheduledFuture<?> task;
+
+  /**
+   * Constructs a new adaptive prefetch.
+   *
+   * @param bunny the bunny
+   * @param queue the queue name
+   * @param minimum the minimum prefetch count
+   * @param maximum the maximum prefetch count
+   * @param interval the time between adjustments, in milliseconds
+   */
+  AdaptivePrefetch(final Bunny bunny, final String queue, final int minimum, final int maximum, final long interval) {
+    this.bunny = bunny;
+    this.queue = queue;
+    this.minimum = Math.max(1, minimum);
+    this.maximum = Math.max(this.minimum, maximum);
+    this.interval = interval;
+    this.prefetch = this.minimum;
+  }
+
+  /**
+   * Opens a channel to consume on.
+   *
+   * @return the channel
+   * @throws IOException if an exception is encountered while opening the channel
+   */
+  synchronized @NonNull Channel open() throws IOException {
+    final Channel channel = this.bunny.createChannel();
+    // a global limit can be changed while consumers are active
+    channel.basicQos(this.prefetch, true);
+    this.channels.add(channel);
+    if(this.task == null) {
+      this.task = this.bunny.scheduler().scheduleAtFixedRate(() -> this.bunny.executor().execute(this::adjust), this.interval, this.interval, TimeUnit.MILLISECONDS);
+    }
+    return channel;
+  }
+
+  /**
+   * Closes a channel opened by {@link #open()}.
+   *
+   * @param channel the channel
+   */
+  synchronized void close(final @NonNull Channel channel) {
+    this.channels.remove(channel);
+    if(channel.isOpen()) {
+      try {
+        channel.close();
+      } catch(final IOException | TimeoutException e) {
+        LOGGER.error("Exception closing channel", e);
+      }
+    }
+    if(this.channels.isEmpty() && this.task != null) {
+      this.task.cancel(false);
+      this.task = null;
+    }
+  }
+
+  /**
+   * Forgets deliveries which were in flight before the connection was recovered, as they will never complete.
+   */
+  void recovered() {
+    this.inFlight.set(0);
+  }
+
+  /**
+   * Records the receipt of a delivery.
+   */
+  void received() {
+    final int inFlight = this.inFlight.incrementAndGet();
+    this.peak.accumulateAndGet(inFlight, Math::max);
+  }
+
+  /**
+   * Records the completion of a delivery.
+   *
+   * @param received the time the delivery was received, in nanoseconds
+   * @param started the time handling of the delivery started, in nanoseconds
+   */
+  void completed(final long received, final long started) {
+    final long now = System.nanoTime();
+    this.inFlight.decrementAndGet();
+    this.completed.increment();
+    this.handling.add(now - started);
+    this.sojourn.add(now - received);
+  }
+
+  private void adjust() {
+    final long completed = this.completed.sumThenReset();
+    final long handling = this.handling.sumThenReset();
+    final long sojourn = this.sojourn.sumThenReset();
+    final int peak = this.peak.getAndSet(this.inFlight.get());
+    if(completed == 0) {
+      return;
+    }
+    final int current = this.prefetch;
+    final int next;
+    if(sojourn - handling > handling) {
+      // deliveries are waiting locally longer than they take to handle - we're hoarding
+      next = Math.max(this.minimum, current / 2);
+    } else if(peak >= current * this.channels.size()) {
+      // the window was full, so handlers may have been waiting on the broker
+      next = Math.min(this.maximum, current + 1);
+    } else {
+      next = current;
+    }
+    if(next != current) {
+      this.prefetch = next;
+      this.apply(next);
+    }
+  }
+
+  private synchronized void apply(final int prefetch) {
+    for(final Channel channel : this.channels) {
+      if(!channel.isOpen()) {
+        continue;
+      }
+      try {
+        channel.basicQos(prefetch, true);
+      } catch(final IOException e) {
+        LOGGER.error("Exception adjusting prefetch", e);
+      }
+    }
+    LOGGER.debug("Adjusted prefetch of '{}' to {}", this.queue, prefetch);
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A store for message payloads which are too large to be sent through the broker.
+ *
+ * <p>Payloads are written by the publisher, which sends only a reference to them, and are resolved by
+ * consumers on delivery. Stores are responsible for eventually removing payloads.</p>
+ *
+ * @see MappedBlobStore
+ */
+public interface BlobStore {
+  /**
+   * Stores a payload.
+   *
+   * @param payload the payload
+   * @return a reference to the payload
+   * @throws IOException if an exception is encountered while storing the payload
+   */
+  @NonNull String put(final byte@NonNull[] payload) throws IOException;
+
+  /**
+   * Gets a payload.
+   *
+   * <p>The returned buffer may be a view of the stored payload, and should not be retained.</p>
+   *
+   * @param reference the reference to the payload
+   * @return the payload
+   * @throws IOException if an exception is encountered while reading the payload
+   */
+  @NonNull ByteBuffer get(final @NonNull String reference) throws IOException;
+}
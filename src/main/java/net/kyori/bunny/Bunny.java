@@ -23,9 +23,12 @@
  */
 package net.kyori.bunny;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
 import net.kyori.membrane.facet.Connectable;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -33,6 +36,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeoutException;
 
 import javax.inject.Inject;
@@ -49,6 +59,24 @@ public class Bunny implements Connectable {
   private final BunnyConfiguration config;
   private Connection connection;
   private @Nullable Channel channel;
+  /**
+   * The scheduler used for timed tasks, such as flushing batches.
+   *
+   * <p>Message handlers must never be invoked on this scheduler.</p>
+   */
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("bunny-scheduler-%d").setDaemon(true).build());
+  /**
+   * The executor used to invoke message handlers outside of a consumer thread.
+   */
+  private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setNameFormat("bunny-worker-%d").setDaemon(true).build());
+  /**
+   * Listeners run, in order, after the connection has been automatically recovered.
+   */
+  private final List<Runnable> recoveryListeners = new CopyOnWriteArrayList<>();
+  /**
+   * A map of channel group names to the channel shared by the group.
+   */
+  private final Map<String, ChannelGroup> groups = new HashMap<>();
 
   @Inject
   private Bunny(final BunnyConfiguration config) {
@@ -69,6 +97,86 @@ public class Bunny implements Connectable {
     return this.channel;
   }
 
+  /**
+   * Opens a new channel.
+   *
+   * @return the channel
+   * @throws IOException if an exception is encountered while opening the channel
+   */
+  final @NonNull Channel createChannel() throws IOException {
+    checkState(this.connection != null, "bunny has not been connected");
+    return this.connection.createChannel();
+  }
+
+  /**
+   * Gets the channel shared by a group, opening it if it is not open.
+   *
+   * <p>The channel is closed once every holder has {@link #release(String, Channel) released} it.</p>
+   *
+   * @param group the group name
+   * @return the channel
+   * @throws IOException if an exception is encountered while opening the channel
+   */
+  final synchronized @NonNull Channel acquire(final @NonNull String group) throws IOException {
+    @Nullable ChannelGroup channels = this.groups.get(group);
+    if(channels == null || !channels.channel.isOpen()) {
+      channels = new ChannelGroup(this.createChannel());
+      this.groups.put(group, channels);
+    }
+    channels.references++;
+    return channels.channel;
+  }
+
+  /**
+   * Releases the channel shared by a group.
+   *
+   * @param group the group name
+   * @param channel the channel
+   */
+  final synchronized void release(final @NonNull String group, final @NonNull Channel channel) {
+    final @Nullable ChannelGroup channels = this.groups.get(group);
+    if(channels != null && channels.channel == channel) {
+      if(--channels.references > 0) {
+        return;
+      }
+      this.groups.remove(group);
+    }
+    if(channel.isOpen()) {
+      try {
+        channel.close();
+      } catch(final IOException | TimeoutException e) {
+        LOGGER.error("Exception closing channel", e);
+      }
+    }
+  }
+
+  /**
+   * Gets the scheduler used for timed tasks.
+   *
+   * @return the scheduler
+   */
+  final @NonNull ScheduledExecutorService scheduler() {
+    return this.scheduler;
+  }
+
+  /**
+   * Gets the executor used to invoke message handlers outside of a consumer thread.
+   *
+   * @return the executor
+   */
+  final @NonNull ExecutorService executor() {
+    return this.executor;
+  }
+
+  /**
+   * Adds a listener to run after the connection has been automatically recovered.
+   *
+   * @param listener the listener
+   */
+  final void onRecovery(final @NonNull Runnable listener) {
+    this.recoveryListeners.add(listener);
+  }
+
   @Override
   public void connect() throws IOException, TimeoutException {
     final ConnectionFactory factory = new ConnectionFactory();
@@ -81,6 +189,38 @@ public class Bunny implements Connectable {
     LOGGER.info("Connecting to '{}'", this.config.addresses());
     this.connection = factory.newConnection(this.config.addresses());
     this.channel = this.connection.createChannel();
+    if(this.connection instanceof Recoverable) {
+      ((Recoverable) this.connection).addRecoveryListener(new RecoveryListener() {
+        @Override
+        public void handleRecovery(final Recoverable recoverable) {
+          LOGGER.info("Recovered connection to {}", recoverable);
+          Bunny.this.executor.execute(Bunny.this::recovered);
+        }
+
+        @Override
+        public void handleRecoveryStarted(final Recoverable recoverable) {
+        }
+      });
+    }
+  }
+
+  private static final class ChannelGroup {
+    final Channel channel;
+    int references;
+
+    ChannelGroup(final Channel channel) {
+      this.channel = channel;
+    }
+  }
+
+  private void recovered() {
+    for(final Runnable listener : this.recoveryListeners) {
+      try {
+        listener.run();
+      } catch(final Throwable t) {
+        LOGGER.error("Exception encountered while recovering", t);
+      }
+    }
   }
 
   @Override
@@ -89,6 +229,9 @@ public class Bunny implements Connectable {
       LOGGER.info("Disconnecting from {}", this.connection.toString());
       this.channel.close();
       this.channel = null;
+      synchronized(this) {
+        this.groups.clear();
+      }
       this.connection.close();
       this.connection = null;
     }
@@ -0,0 +1,267 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.rabbitmq.client.AMQP;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Packs messages published to the same routing key into a single envelope.
+ *
+ * <p>An envelope body is a sequence of elements, each consisting of the message type, the message
+ * id, and the length-prefixed message body.</p>
+ */
+final class Coalescer {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Coalescer.class);
+  /**
+   * The message type of an envelope.
+   */
+  static final String TYPE = "bunny:envelope";
+  private static final int PERSISTENT = 2;
+  private final Bunny bunny;
+  private final Sink sink;
+  private final int size;
+  private final long linger;
+  /**
+   * A map of routing keys to pending envelopes.
+   *
+   * <p>An envelope is removed once it has been flushed, so routing keys which are no longer published to are not
+   * kept around.</p>
+   */
+  private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+  /**
+   * Constructs a new coalescer.
+   *
+   * @param bunny the bunny
+   * @param sink the sink envelopes are sent to
+   * @param size the maximum size of an envelope body, in bytes
+   * @param linger the maximum time to wait for an envelope to fill, in milliseconds
+   */
+  Coalescer(final Bunny bunny, final Sink sink, final int size, final long linger) {
+    this.bunny = bunny;
+    this.sink = sink;
+    this.size = size;
+    this.linger = linger;
+  }
+
+  /**
+   * Tests if a message with the specified properties may be packed into an envelope.
+   *
+   * <p>Only the delivery mode is carried over to the envelope, so messages with any other property set are sent on their own.</p>
+   *
+   * @param properties the properties
+   * @return {@code true} if the message may be packed, {@code false} otherwise
+   */
+  static boolean eligible(final AMQP.@NonNull BasicProperties properties) {
+    return properties.getContentType() == null
+      && properties.getContentEncoding() == null
+      && (properties.getHeaders() == null || properties.getHeaders().isEmpty())
+      && properties.getPriority() == null
+      && properties.getCorrelationId() == null
+      && properties.getReplyTo() == null
+      && properties.getExpiration() == null
+      && properties.getMessageId() == null
+      && properties.getTimestamp() == null
+      && properties.getType() == null
+      && properties.getUserId() == null
+      && properties.getAppId() == null
+      && properties.getClusterId() == null;
+  }
+
+  /**
+   * Adds a message to the envelope for a routing key.
+   *
+   * @param routingKey the routing key
+   * @param properties the message properties
+   * @param id the message id
+   * @param type the message type
+   * @param body the message body
+   */
+  void add(final @NonNull String routingKey, final AMQP.@NonNull BasicProperties properties, final @NonNull String id, final @NonNull String type, final byte@NonNull[] body) {
+    // an envelope removed by a concurrent flush no longer accepts messages, and is already gone from the map
+    // by the time that is seen, so the retry creates a new one
+    boolean added;
+    do {
+      added = this.pending.computeIfAbsent(routingKey, Pending::new).add(properties, id, type, body);
+    } while(!added);
+  }
+
+  /**
+   * Sends all pending envelopes.
+   */
+  void flush() {
+    this.pending.values().forEach(Pending::flush);
+  }
+
+  /**
+   * Gets the number of routing keys with a pending envelope.
+   *
+   * @return the number of routing keys
+   */
+  int pending() {
+    return this.pending.size();
+  }
+
+  /**
+   * Unpacks an envelope.
+   *
+   * @param properties the envelope properties
+   * @param body the envelope body
+   * @param consumer the consumer of each element
+   * @throws IOException if the envelope is malformed
+   */
+  static void unpack(final AMQP.@NonNull BasicProperties properties, final byte@NonNull[] body, final @NonNull ElementConsumer consumer) throws IOException {
+    final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    while(in.available() > 0) {
+      final String type = in.readUTF();
+      final String id = in.readUTF();
+      final byte[] element = new byte[in.readInt()];
+      in.readFully(element);
+      consumer.accept(properties.builder().type(type).messageId(id).build(), element);
+    }
+  }
+
+  /**
+   * A consumer of envelope elements.
+   */
+  interface ElementConsumer {
+    void accept(final AMQP.BasicProperties properties, final byte[] body);
+  }
+
+  /**
+   * A sink envelopes are sent to.
+   */
+  interface Sink {
+    /**
+     * Sends an envelope.
+     *
+     * @param routingKey the routing key
+     * @param properties the envelope properties
+     * @param body the envelope body
+     * @throws IOException if an exception is encountered while sending
+     */
+    void send(final String routingKey, final AMQP.BasicProperties properties, final byte[] body) throws IOException;
+  }
+
+  private final class Pending {
+    private final String routingKey;
+    private final ByteArrayOutputStream bytes;
+    private final DataOutputStream out;
+    private boolean persistent;
+    private @Nullable ScheduledFuture<?> flush;
+    /**
+     * If this envelope has been removed from the pending envelopes.
+     */
+    private boolean removed;
+
+    Pending(final String routingKey) {
+      this.routingKey = routingKey;
+      this.bytes = new ByteArrayOutputStream();
+      this.out = new DataOutputStream(this.bytes);
+    }
+
+    /**
+     * Adds a message to this envelope.
+     *
+     * @return {@code true} if the message was added, {@code false} if this envelope has been removed
+     */
+    synchronized boolean add(final AMQP.BasicProperties properties, final String id, final String type, final byte[] body) {
+      if(this.removed) {
+        return false;
+      }
+      if(this.bytes.size() > 0 && this.bytes.size() + body.length > Coalescer.this.size) {
+        this.send();
+      }
+
+      try {
+        this.out.writeUTF(type);
+        this.out.writeUTF(id);
+        this.out.writeInt(body.length);
+        this.out.write(body);
+      } catch(final IOException e) {
+        // ByteArrayOutputStream does not throw
+        throw new IllegalStateException(e);
+      }
+      this.persistent |= properties.getDeliveryMode() != null && properties.getDeliveryMode() == PERSISTENT;
+
+      if(this.bytes.size() >= Coalescer.this.size) {
+        this.flush();
+      } else if(this.flush == null) {
+        this.flush = Coalescer.this.bunny.scheduler().schedule(() -> Coalescer.this.bunny.executor().execute(this::flush), Coalescer.this.linger, TimeUnit.MILLISECONDS);
+      }
+      return true;
+    }
+
+    /**
+     * Sends this envelope, and removes it from the pending envelopes.
+     */
+    synchronized void flush() {
+      this.send();
+      if(!this.removed) {
+        this.removed = true;
+        Coalescer.this.pending.remove(this.routingKey, this);
+      }
+    }
+
+    private void send() {
+      if(this.flush != null) {
+        this.flush.cancel(false);
+        this.flush = null;
+      }
+      if(this.bytes.size() == 0) {
+        return;
+      }
+
+      final AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+        .messageId(UUID.randomUUID().toString())
+        .type(TYPE)
+        .deliveryMode(this.persistent ? PERSISTENT : null)
+        .build();
+      final byte[] body = this.bytes.toByteArray();
+      this.bytes.reset();
+      this.persistent = false;
+
+      try {
+        Coalescer.this.sink.send(this.routingKey, properties, body);
+      } catch(final IOException e) {
+        LOGGER.error("Exception encountered while publishing envelope", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,199 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.rabbitmq.client.Channel;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Adds and removes consumers of a queue based on its backlog and the utilization of its handlers.
+ *
+ * <p>A consumer is added when messages are waiting in the queue and handlers are busy for most of the time, and
+ * one is removed when the queue is empty and handlers are mostly idle.</p>
+ */
+final class ConsumerScaler {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConsumerScaler.class);
+  /**
+   * The utilization above which a consumer is added while messages are waiting.
+   */
+  private static final double HIGH = 0.75;
+  /**
+   * The utilization below which a consumer is removed while no messages are waiting.
+   */
+  private static final double LOW = 0.25;
+  private final Bunny bunny;
+  private final String queue;
+  private final Supplier<List<String>> queues;
+  private final Pool pool;
+  private final int minimum;
+  private final int maximum;
+  private final long interval;
+  /**
+   * The total time spent handling deliveries, in nanoseconds.
+   */
+  private final LongAdder busy = new LongAdder();
+  private long sampled;
+  /**
+   * The channel used to sample the queue depth, separate from the consumer channels as a failed
+   * passive declare closes its channel.
+   */
+  private @Nullable Channel channel;
+  private @Nullable ScheduledFuture<?> task;
+
+  /**
+   * Constructs a new consumer scaler.
+   *
+   * @param bunny the bunny
+   * @param queue the queue name
+   * @param queues a supplier of the names of the queues consumed from
+   * @param pool the consumers
+   * @param minimum the minimum number of consumers
+   * @param maximum the maximum number of consumers
+   * @param interval the time between samples, in milliseconds
+   */
+  ConsumerScaler(final Bunny bunny, final String queue, final Supplier<List<String>> queues, final Pool pool, final int minimum, final int maximum, final long interval) {
+    this.bunny = bunny;
+    this.queue = queue;
+    this.queues = queues;
+    this.pool = pool;
+    this.minimum = minimum;
+    this.maximum = maximum;
+    this.interval = interval;
+  }
+
+  /**
+   * Starts sampling.
+   */
+  synchronized void start() {
+    if(this.task == null) {
+      this.busy.reset();
+      this.sampled = System.nanoTime();
+      this.task = this.bunny.scheduler().scheduleAtFixedRate(() -> this.bunny.executor().execute(this::scale), this.interval, this.interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Records time spent handling a delivery.
+   *
+   * @param nanos the time spent, in nanoseconds
+   */
+  void busy(final long nanos) {
+    this.busy.add(nanos);
+  }
+
+  private synchronized void scale() {
+    if(this.task == null) {
+      return;
+    }
+    final long now = System.nanoTime();
+    final long elapsed = now - this.sampled;
+    this.sampled = now;
+    final long busy = this.busy.sumThenReset();
+    final int size = this.pool.size();
+    final long depth;
+    try {
+      depth = this.depth();
+    } catch(final IOException e) {
+      LOGGER.warn("Could not sample depth of queue '{}': {}", this.queue, e.getMessage());
+      return;
+    }
+    final double utilization = size > 0 ? busy / (double) (elapsed * size) : 1;
+    try {
+      if(depth > 0 && utilization >= HIGH && size < this.maximum) {
+        LOGGER.info("Adding consumer to '{}' ({} waiting, {}% utilization)", this.queue, depth, Math.round(utilization * 100));
+        this.pool.grow();
+      } else if(depth == 0 && utilization <= LOW && size > this.minimum) {
+        LOGGER.info("Removing consumer from '{}' ({}% utilization)", this.queue, Math.round(utilization * 100));
+        this.pool.shrink();
+      }
+    } catch(final IOException e) {
+      LOGGER.error("Exception scaling consumers", e);
+    }
+  }
+
+  private long depth() throws IOException {
+    if(this.channel == null || !this.channel.isOpen()) {
+      this.channel = this.bunny.createChannel();
+    }
+    long depth = 0;
+    for(final String queue : this.queues.get()) {
+      depth += this.channel.queueDeclarePassive(queue).getMessageCount();
+    }
+    return depth;
+  }
+
+  /**
+   * Stops sampling.
+   */
+  synchronized void stop() {
+    if(this.task != null) {
+      this.task.cancel(false);
+      this.task = null;
+    }
+    if(this.channel != null && this.channel.isOpen()) {
+      try {
+        this.channel.close();
+      } catch(final IOException | TimeoutException e) {
+        LOGGER.error("Exception closing channel", e);
+      }
+    }
+    this.channel = null;
+  }
+
+  /**
+   * The consumers being scaled.
+   */
+  interface Pool {
+    /**
+     * Gets the number of consumers.
+     *
+     * @return the number of consumers
+     */
+    int size();
+
+    /**
+     * Adds a consumer.
+     *
+     * @throws IOException if an exception is encountered while consuming
+     */
+    void grow() throws IOException;
+
+    /**
+     * Removes a consumer.
+     *
+     * @throws IOException if an exception is encountered while cancelling
+     */
+    void shrink() throws IOException;
+  }
+}
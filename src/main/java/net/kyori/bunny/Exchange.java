@@ -30,6 +30,8 @@ import net.kyori.lunar.Named;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -86,6 +88,38 @@ public interface Exchange extends Named {
     this.publish(message, routingKey, false, false, properties);
   }
 
+  /**
+   * Publish a message to this exchange, to be consumed from the shard of a {@link Queue.Impl#shards() sharded queue}
+   * selected by a hash key.
+   *
+   * <p>Messages with the same hash key are always consumed from the same shard.</p>
+   *
+   * @param message the message
+   * @param routingKey the routing key
+   * @param hashKey the hash key
+   * @param properties the properties
+   */
+  default void publish(final @NonNull Message message, final @NonNull String routingKey, final @NonNull String hashKey, final AMQP.@NonNull BasicProperties properties) {
+    final Map<String, Object> headers = properties.getHeaders() != null ? new HashMap<>(properties.getHeaders()) : new HashMap<>();
+    headers.put(Headers.HASH_KEY, hashKey);
+    this.publish(message, routingKey, false, false, properties.builder().headers(headers).build());
+  }
+
+  /**
+   * Publish a message to this exchange, to be dropped by consumers which receive it after a deadline.
+   *
+   * @param message the message
+   * @param routingKey the routing key
+   * @param deadline the time after which the message is no longer relevant
+   * @param properties the properties
+   * @see Queue.Impl#expiry()
+   */
+  default void publish(final @NonNull Message message, final @NonNull String routingKey, final @NonNull Date deadline, final AMQP.@NonNull BasicProperties properties) {
+    final Map<String, Object> headers = properties.getHeaders() != null ? new HashMap<>(properties.getHeaders()) : new HashMap<>();
+    headers.put(Headers.DEADLINE, deadline.getTime());
+    this.publish(message, routingKey, false, false, properties.builder().headers(headers).build());
+  }
+
   /**
    * Publish a message to this exchange.
    *
@@ -94,6 +128,7 @@ public interface Exchange extends Named {
    * @param mandatory if the {@code mandatory} flag should be set
    * @param immediate if the {@code immediate} flag should be set
    * @param properties the properties
+   * @throws PublishRejectedException if the message exceeds the rate limit of this exchange
    */
   void publish(final @NonNull Message message, final @NonNull String routingKey, final boolean mandatory, final boolean immediate, final AMQP.@NonNull BasicProperties properties);
 
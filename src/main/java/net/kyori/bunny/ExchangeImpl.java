@@ -25,9 +25,14 @@ package net.kyori.bunny;
 
 import com.google.common.base.MoreObjects;
 import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
 import net.kyori.bunny.message.Message;
+import net.kyori.bunny.message.MessageMeta;
 import net.kyori.bunny.message.MessageRegistry;
 import net.kyori.membrane.facet.Connectable;
 import org.checkerframework.checker.nullness.qual.NonNull;
@@ -35,11 +40,18 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 
@@ -48,15 +60,28 @@ import javax.inject.Inject;
  */
 abstract class ExchangeImpl implements Connectable, Exchange {
   private static final Logger LOGGER = LoggerFactory.getLogger(Exchange.class);
+  private static final byte[] EMPTY = new byte[0];
   private @Inject Bunny bunny;
   private @Inject Gson gson;
   private @Inject MessageRegistry mr;
+  private @Inject Topology topology;
   private final @NonNull String name;
   private final @NonNull String type;
   private final boolean durable;
   private final boolean autoDelete;
   private final boolean internal;
   private final @Nullable Map<String, Object> arguments;
+  private @Nullable Coalescer coalescer;
+  private @Nullable RateLimiter limiter;
+  private @Nullable Outbox outbox;
+  /**
+   * A map of message types to the properties their messages are published with.
+   */
+  private final Map<MessageMeta<? extends Message>, AMQP.BasicProperties> templates = new ConcurrentHashMap<>();
+  /**
+   * A map of message types to whether their templates set any property an envelope could not carry.
+   */
+  private final Map<MessageMeta<? extends Message>, Boolean> templated = new ConcurrentHashMap<>();
 
   /**
    * Constructs a new exchange.
@@ -121,41 +146,338 @@ abstract class ExchangeImpl implements Connectable, Exchange {
     return this.arguments != null ? Collections.unmodifiableMap(this.arguments) : null;
   }
 
+  /**
+   * Gets the maximum size of an envelope body when coalescing messages, in bytes.
+   *
+   * <p>When this is greater than {@code 0}, messages without any properties published to the same routing key are
+   * packed into a single envelope, which is sent once it is full or after the {@link #coalescingLinger() linger time}.
+   * Payloads written to the {@link #blobStore() blob store}, and messages of a type with a
+   * {@link #template(AMQP.BasicProperties.Builder, Class) template}, are always sent on their own. Coalescing is
+   * disabled when this is {@code 0}, which is the default.</p>
+   *
+   * @return the maximum size of an envelope body, in bytes
+   */
+  protected int coalescingSize() {
+    return 0;
+  }
+
+  /**
+   * Gets the maximum time to wait for an envelope to fill when coalescing messages, in milliseconds.
+   *
+   * @return the maximum time to wait for an envelope to fill, in milliseconds
+   */
+  protected long coalescingLinger() {
+    return 5;
+  }
+
+  /**
+   * Gets the store which payloads larger than the {@link #claimCheckThreshold() threshold} are written to.
+   *
+   * <p>When a store is provided, large payloads are written to it and only a reference is sent through the broker.
+   * Consuming queues must be able to read from the same store. No store is used by default.</p>
+   *
+   * @return the blob store, or {@code null}
+   */
+  protected @Nullable BlobStore blobStore() {
+    return null;
+  }
+
+  /**
+   * Gets the size above which payloads are written to the {@link #blobStore() blob store}, in bytes.
+   *
+   * @return the size above which payloads are written to the blob store, in bytes
+   */
+  protected int claimCheckThreshold() {
+    return 1024 * 1024;
+  }
+
+  /**
+   * Gets the rate limiter applied to messages published to this exchange.
+   *
+   * <p>No rate limiter is used by default.</p>
+   *
+   * @return the rate limiter, or {@code null}
+   */
+  protected @Nullable RateLimiter rateLimiter() {
+    return null;
+  }
+
+  /**
+   * Gets the outbox messages published to this exchange are sent through.
+   *
+   * <p>When an outbox is provided, messages are written to it before they are sent and are kept until the broker has
+   * confirmed them, so they are not lost if the connection or process fails. No outbox is used by default.</p>
+   *
+   * @return the outbox, or {@code null}
+   */
+  protected @Nullable Outbox outbox() {
+    return null;
+  }
+
+  /**
+   * Tests if messages published to this exchange are timestamped.
+   *
+   * <p>Timestamped messages have their {@link AMQP.BasicProperties#getTimestamp() timestamp} set, if it is not already,
+   * and carry the time they were published in microseconds so consumers can measure their transit time. Messages are
+   * not timestamped by default.</p>
+   *
+   * @return {@code true} if messages are timestamped, {@code false} otherwise
+   * @see QueueStatistics.Type#transit()
+   */
+  protected boolean timestamped() {
+    return false;
+  }
+
+  /**
+   * Tests if messages published to this exchange carry a W3C trace context.
+   *
+   * <p>Messages published while handling a traced message continue its trace. Messages do not carry a trace context by default.</p>
+   *
+   * @return {@code true} if messages carry a trace context, {@code false} otherwise
+   */
+  protected boolean traced() {
+    return false;
+  }
+
   @Override
   public void connect() throws IOException {
-    LOGGER.info("Declaring exchange '{}'", this);
-    this.bunny.channel().exchangeDeclare(this.name, this.type, this.durable, this.autoDelete, this.internal, this.arguments);
+    if(this.limiter == null) {
+      this.limiter = this.rateLimiter();
+    }
+    if(this.outbox == null) {
+      this.outbox = this.outbox();
+    }
+    if(this.outbox != null) {
+      this.outbox.open(this.bunny);
+    }
+    final int coalescingSize = this.coalescingSize();
+    if(coalescingSize > 0 && this.coalescer == null) {
+      this.coalescer = new Coalescer(this.bunny, (routingKey, properties, body) -> {
+        if(this.timestamped() || this.traced()) {
+          final long micros = Tracing.micros();
+          this.send(routingKey, false, false, properties.builder()
+            .headers(this.trace(properties.getHeaders(), micros))
+            .timestamp(this.timestamp(properties.getTimestamp(), micros))
+            .build(), body);
+        } else {
+          this.send(routingKey, false, false, properties, body);
+        }
+      }, coalescingSize, this.coalescingLinger());
+    }
+    if(!this.topology.declared(this)) {
+      LOGGER.info("Declaring exchange '{}'", this);
+      this.bunny.channel().exchangeDeclare(this.name, this.type, this.durable, this.autoDelete, this.internal, this.arguments);
+    }
+    this.topology.remember(this);
+  }
+
+  /**
+   * Computes a fingerprint of this exchange's declaration.
+   *
+   * @return the fingerprint
+   */
+  int fingerprint() {
+    return Objects.hash(this.name, this.type, this.durable, this.autoDelete, this.internal, this.arguments);
+  }
+
+  /**
+   * Declares this exchange without waiting for the broker to confirm it.
+   *
+   * @param channel the channel to declare on
+   * @throws IOException if an exception is encountered while declaring
+   */
+  void declare(final @NonNull Channel channel) throws IOException {
+    channel.exchangeDeclareNoWait(this.name, this.type, this.durable, this.autoDelete, this.internal, this.arguments);
   }
 
   @Override
   public void disconnect() {
+    this.topology.forget(this);
+    if(this.coalescer != null && this.bunny.active()) {
+      this.coalescer.flush();
+    }
   }
 
   @Override
   public void publish(final @NonNull Message message, final @NonNull String routingKey, final boolean mandatory, final boolean immediate, final AMQP.@NonNull BasicProperties properties) {
-    this.publish(message, routingKey, mandatory, immediate, properties.builder());
+    final MessageMeta<? extends Message> meta = this.mr.meta(message.getClass());
+    final byte[] body = this.encode(meta, message);
+    final @Nullable RateLimiter limiter = this.limiter;
+    if(limiter != null && !limiter.acquire(body.length, properties)) {
+      if(limiter.overflow() == RateLimiter.Overflow.SHED && !Thread.currentThread().isInterrupted()) {
+        LOGGER.debug("Shedding message '{}' published to '{}': rate limit exceeded", meta.name(), this);
+        return;
+      }
+      throw new PublishRejectedException(String.format("Rate limit of exchange '%s' exceeded", this.name));
+    }
+    final @Nullable Coalescer coalescer = this.coalescer;
+    if(coalescer != null && !mandatory && !immediate && Coalescer.eligible(properties) && !this.claimChecked(body) && !this.templated(meta)) {
+      coalescer.add(routingKey, properties, UUID.randomUUID().toString(), meta.name(), body);
+      return;
+    }
+    this.publish(meta, body, routingKey, mandatory, immediate, properties);
   }
 
   @Override
   public void publishResponse(final @NonNull Message message, final AMQP.@NonNull BasicProperties request) {
-    final AMQP.BasicProperties.Builder properties = new AMQP.BasicProperties.Builder()
-      .correlationId(request.getMessageId());
+    final AMQP.BasicProperties properties = new AMQP.BasicProperties(null, null, null, null, null, request.getMessageId(), null, null, null, null, null, null, null, null);
     this.publish(message, request.getReplyTo(), false, false, properties);
   }
 
   public void publish(final @NonNull Message message, final String routingKey, final boolean mandatory, final boolean immediate, final AMQP.BasicProperties.Builder properties) {
-    properties
-      .messageId(UUID.randomUUID().toString())
-      .type(this.mr.id(message.getClass()));
+    this.publish(message, routingKey, mandatory, immediate, properties.build());
+  }
 
+  private void publish(final @NonNull MessageMeta<? extends Message> meta, final byte@NonNull[] body, final @NonNull String routingKey, final boolean mandatory, final boolean immediate, final AMQP.@NonNull BasicProperties properties) {
+    final AMQP.BasicProperties template = this.templates.computeIfAbsent(meta, this::template);
     try {
-      final String json = this.gson.toJson(message);
-      this.bunny.channel().basicPublish(this.name, routingKey, mandatory, immediate, properties.build(), json.getBytes(StandardCharsets.UTF_8));
+      final long micros = Tracing.micros();
+      @Nullable Map<String, Object> headers = this.trace(merge(template.getHeaders(), properties.getHeaders()), micros);
+      final @Nullable BlobStore store = this.blobStore();
+      final boolean claimCheck = store != null && this.claimChecked(body);
+      if(claimCheck) {
+        headers = headers != null ? new HashMap<>(headers) : new HashMap<>();
+        headers.put(Headers.CLAIM_CHECK, store.put(body));
+      }
+      // only the varying fields are filled in - everything else comes from the caller or the template
+      final AMQP.BasicProperties published = new AMQP.BasicProperties(
+        first(properties.getContentType(), template.getContentType()),
+        first(properties.getContentEncoding(), template.getContentEncoding()),
+        headers,
+        first(properties.getDeliveryMode(), template.getDeliveryMode()),
+        first(properties.getPriority(), template.getPriority()),
+        properties.getCorrelationId(),
+        properties.getReplyTo(),
+        first(properties.getExpiration(), template.getExpiration()),
+        UUID.randomUUID().toString(),
+        this.timestamp(properties.getTimestamp(), micros),
+        template.getType(),
+        first(properties.getUserId(), template.getUserId()),
+        first(properties.getAppId(), template.getAppId()),
+        first(properties.getClusterId(), template.getClusterId())
+      );
+      this.send(routingKey, mandatory, immediate, published, claimCheck ? EMPTY : body);
     } catch(final IOException e) {
       LOGGER.error("Exception encountered while publishing message", e);
     }
   }
 
+  /**
+   * Tests if a payload is written to the {@link #blobStore() blob store} rather than sent, which also keeps it out of envelopes.
+   *
+   * @param body the payload
+   * @return {@code true} if the payload is written to the blob store, {@code false} otherwise
+   */
+  private boolean claimChecked(final byte@NonNull[] body) {
+    return this.blobStore() != null && body.length > this.claimCheckThreshold();
+  }
+
+  /**
+   * Populates the properties every message of a type is published with.
+   *
+   * <p>Templates are built once per message type, and properties set when publishing a message take precedence over them.
+   * The message id, type, correlation id, reply-to and timestamp are always set when publishing. By default, nothing
+   * is populated.</p>
+   *
+   * @param builder the properties builder
+   * @param type the message type
+   */
+  protected void template(final AMQP.BasicProperties.@NonNull Builder builder, final @NonNull Class<? extends Message> type) {
+  }
+
+  /**
+   * Tests if a message type has a template, which an envelope could not carry.
+   *
+   * @param meta the message meta
+   * @return {@code true} if the message type has a template, {@code false} otherwise
+   */
+  private boolean templated(final @NonNull MessageMeta<? extends Message> meta) {
+    return this.templated.computeIfAbsent(meta, key -> {
+      final AMQP.BasicProperties template = this.templates.computeIfAbsent(key, this::template);
+      return !Coalescer.eligible(template.builder().type(null).build());
+    });
+  }
+
+  private AMQP.BasicProperties template(final MessageMeta<? extends Message> meta) {
+    final AMQP.BasicProperties.Builder builder = new AMQP.BasicProperties.Builder();
+    this.template(builder, meta.type());
+    final AMQP.BasicProperties template = builder.build();
+    // the type is not up to the template
+    return template.builder()
+      .type(meta.name())
+      .headers(template.getHeaders() != null ? Collections.unmodifiableMap(new HashMap<>(template.getHeaders())) : null)
+      .build();
+  }
+
+  /**
+   * Applies the trace context to the headers of a message being published.
+   *
+   * @param headers the message headers, which are not modified
+   * @param micros the current time, in microseconds
+   * @return the headers to publish
+   */
+  private @Nullable Map<String, Object> trace(final @Nullable Map<String, Object> headers, final long micros) {
+    final boolean timestamped = this.timestamped();
+    final boolean traced = this.traced();
+    if(!timestamped && !traced) {
+      return headers;
+    }
+    final Map<String, Object> trace = headers != null ? new HashMap<>(headers) : new HashMap<>();
+    if(timestamped) {
+      trace.put(Headers.PUBLISHED, micros);
+    }
+    if(traced) {
+      trace.putIfAbsent(Headers.TRACE_PARENT, Tracing.child());
+    }
+    return trace;
+  }
+
+  private @Nullable Date timestamp(final @Nullable Date timestamp, final long micros) {
+    if(timestamp == null && this.timestamped()) {
+      return new Date(TimeUnit.MICROSECONDS.toMillis(micros));
+    }
+    return timestamp;
+  }
+
+  private static @Nullable Map<String, Object> merge(final @Nullable Map<String, Object> template, final @Nullable Map<String, Object> headers) {
+    if(template == null) {
+      return headers;
+    } else if(headers == null) {
+      return template;
+    }
+    final Map<String, Object> merged = new HashMap<>(template);
+    merged.putAll(headers);
+    return merged;
+  }
+
+  private static <T> @Nullable T first(final @Nullable T value, final @Nullable T fallback) {
+    return value != null ? value : fallback;
+  }
+
+  private void send(final @NonNull String routingKey, final boolean mandatory, final boolean immediate, final AMQP.@NonNull BasicProperties properties, final byte@NonNull[] body) throws IOException {
+    final @Nullable Outbox outbox = this.outbox;
+    if(outbox != null) {
+      outbox.publish(this.name, routingKey, mandatory, immediate, properties, body);
+    } else {
+      this.bunny.channel().basicPublish(this.name, routingKey, mandatory, immediate, properties, body);
+    }
+  }
+
+  private byte[] encode(final @NonNull MessageMeta<? extends Message> meta, final @NonNull Message message) {
+    // subclasses of a registered message are not covered by its adapter
+    final TypeAdapter<Message> adapter = (TypeAdapter<Message>) (meta.type() == message.getClass() ? meta.adapter() : this.gson.getAdapter(message.getClass()));
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      final JsonWriter writer = this.gson.newJsonWriter(new OutputStreamWriter(bytes, StandardCharsets.UTF_8));
+      writer.setLenient(true);
+      adapter.write(writer, message);
+      writer.flush();
+    } catch(final IOException e) {
+      throw new JsonIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
@@ -0,0 +1,57 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+/**
+ * Names of the message headers used by bunny.
+ */
+final class Headers {
+  /**
+   * The header holding a {@link BlobStore} reference to the payload of a message sent with an empty body.
+   */
+  static final String CLAIM_CHECK = "x-bunny-claim-check";
+  /**
+   * The header holding the time a message was published, in microseconds since the epoch.
+   */
+  static final String PUBLISHED = "x-bunny-published";
+  /**
+   * The header holding the W3C trace context of a message.
+   */
+  static final String TRACE_PARENT = "traceparent";
+  /**
+   * The header holding the key a message is hashed on to select the shard of a sharded queue.
+   */
+  static final String HASH_KEY = "x-bunny-hash-key";
+  /**
+   * The header holding the time after which a message is no longer relevant, in milliseconds since the epoch.
+   */
+  static final String DEADLINE = "x-bunny-deadline";
+  /**
+   * The header holding the routing key an element of a coalesced delivery was published with, when it has been requeued on its own.
+   */
+  static final String ROUTING_KEY = "x-bunny-routing-key";
+
+  private Headers() {
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A concurrent histogram of latencies, in microseconds.
+ *
+ * <p>Values below 16 are counted exactly. Larger values are counted in buckets of eight per power of two,
+ * giving a relative error of at most 12.5%.</p>
+ */
+final class LatencyHistogram {
+  private static final int EXACT = 16;
+  private static final int SUB_BUCKETS = 8;
+  private static final int BUCKETS = EXACT + (Long.SIZE - 5) * SUB_BUCKETS;
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a latency.
+   *
+   * @param micros the latency, in microseconds
+   */
+  void record(final long micros) {
+    final long value = Math.max(0, micros);
+    this.counts.incrementAndGet(index(value));
+    this.sum.addAndGet(value);
+    this.max.accumulateAndGet(value, Math::max);
+  }
+
+  /**
+   * Records a latency.
+   *
+   * @param start the start time, in nanoseconds
+   * @param end the end time, in nanoseconds
+   */
+  void record(final long start, final long end) {
+    this.record((end - start) / 1000);
+  }
+
+  /**
+   * Takes a snapshot of this histogram.
+   *
+   * @return the snapshot
+   */
+  QueueStatistics.@NonNull Latency snapshot() {
+    final long[] counts = new long[BUCKETS];
+    long count = 0;
+    for(int i = 0; i < BUCKETS; i++) {
+      counts[i] = this.counts.get(i);
+      count += counts[i];
+    }
+    return new QueueStatistics.Latency(counts, count, this.sum.get(), this.max.get());
+  }
+
+  static int index(final long value) {
+    if(value < EXACT) {
+      return (int) value;
+    }
+    final int bits = Long.SIZE - Long.numberOfLeadingZeros(value);
+    return EXACT + (bits - 5) * SUB_BUCKETS + (int) ((value >>> (bits - 4)) & (SUB_BUCKETS - 1));
+  }
+
+  /**
+   * Gets the largest value counted in a bucket.
+   *
+   * @param index the bucket index
+   * @return the largest value
+   */
+  static long value(final int index) {
+    if(index < EXACT) {
+      return index;
+    }
+    final int bits = (index - EXACT) / SUB_BUCKETS + 5;
+    final int sub = (index - EXACT) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + sub + 1) << (bits - 4)) - 1;
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A blob store which appends payloads to memory-mapped segment files in a shared directory.
+ *
+ * <p>Every store writes to its own segments, so any number of publishers may share a directory. Payloads are
+ * read by mapping the referenced region of a segment, without copying. Every store periodically deletes the
+ * segments it has rolled past once they have not been written to for longer than the retention time. Segments
+ * written by other stores are never touched, so segments left behind by a store which no longer exists must be
+ * removed externally.</p>
+ */
+public final class MappedBlobStore implements BlobStore {
+  private static final Logger LOGGER = LoggerFactory.getLogger(MappedBlobStore.class);
+  private static final String EXTENSION = ".segment";
+  private static final Pattern REFERENCE = Pattern.compile("([0-9a-f-]+-\\d+" + Pattern.quote(EXTENSION) + "):(\\d+):(\\d+)");
+  private final Path directory;
+  private final int segmentSize;
+  private final long retention;
+  /**
+   * The unique prefix of segments written by this store.
+   */
+  private final String prefix = UUID.randomUUID().toString();
+  /**
+   * The segments this store has rolled past, oldest first.
+   */
+  private final Queue<String> sealed = new ConcurrentLinkedQueue<>();
+  private int segments;
+  private volatile @Nullable String segment;
+  private @Nullable MappedByteBuffer buffer;
+
+  /**
+   * Constructs a new blob store.
+   *
+   * @param directory the shared directory
+   * @param segmentSize the size of a segment, in bytes
+   * @param retention how long segments are kept after they were last written to, in milliseconds
+   * @param scheduler the scheduler expired segments are deleted on
+   * @throws IOException if the directory could not be created
+   */
+  public MappedBlobStore(final @NonNull Path directory, final int segmentSize, final long retention, final @NonNull ScheduledExecutorService scheduler) throws IOException {
+    checkArgument(segmentSize > 0, "segment size must be positive");
+    checkArgument(retention > 0, "retention must be positive");
+    this.directory = Files.createDirectories(directory);
+    this.segmentSize = segmentSize;
+    this.retention = retention;
+    // segments are checked twice per retention period, so none outlives it by more than half
+    scheduler.scheduleWithFixedDelay(this::expire, 0, Math.max(retention / 2, 1), TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized @NonNull String put(final byte@NonNull[] payload) throws IOException {
+    if(this.buffer == null || this.buffer.remaining() < payload.length) {
+      this.roll(payload.length);
+    }
+    final int offset = this.buffer.position();
+    this.buffer.put(payload);
+    this.buffer.force();
+    return this.segment + ':' + offset + ':' + payload.length;
+  }
+
+  @Override
+  public @NonNull ByteBuffer get(final @NonNull String reference) throws IOException {
+    final Matcher matcher = REFERENCE.matcher(reference);
+    checkArgument(matcher.matches(), "invalid reference '%s'", reference);
+    try(final FileChannel channel = FileChannel.open(this.directory.resolve(matcher.group(1)), StandardOpenOption.READ)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, Long.parseLong(matcher.group(2)), Long.parseLong(matcher.group(3)));
+    }
+  }
+
+  private void roll(final int minimumSize) throws IOException {
+    if(this.segment != null) {
+      this.sealed.add(this.segment);
+    }
+    this.segment = this.prefix + '-' + this.segments++ + EXTENSION;
+    try(final FileChannel channel = FileChannel.open(this.directory.resolve(this.segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(this.segmentSize, minimumSize));
+    }
+  }
+
+  /**
+   * Deletes segments this store has rolled past which have not been written to for longer than the retention time.
+   */
+  private void expire() {
+    final long cutoff = System.currentTimeMillis() - this.retention;
+    for(final Iterator<String> it = this.sealed.iterator(); it.hasNext(); ) {
+      final Path path = this.directory.resolve(it.next());
+      try {
+        if(Files.getLastModifiedTime(path).to(TimeUnit.MILLISECONDS) < cutoff) {
+          Files.deleteIfExists(path);
+          it.remove();
+        }
+      } catch(final NoSuchFileException e) {
+        it.remove();
+      } catch(final IOException e) {
+        LOGGER.warn("Exception deleting expired segment '{}'", path, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,699 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.LongString;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.rabbitmq.client.impl.LongStringHelper;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A durable outbox which appends published messages to a memory-mapped write-ahead log before sending them.
+ *
+ * <p>Messages are sent from the log with publisher confirms enabled, and are marked as confirmed once the broker
+ * has taken responsibility for them. Unconfirmed messages are sent again after the connection is recovered, and
+ * when the outbox is next opened after a restart, so messages may be delivered more than once. A segment of the
+ * log is deleted once every message in it has been confirmed.</p>
+ *
+ * <p>An outbox must have a directory of its own, but may be shared by any number of exchanges.</p>
+ *
+ * @see Exchange.Impl#outbox()
+ */
+public final class Outbox {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Outbox.class);
+  private static final String EXTENSION = ".wal";
+  private static final Pattern SEGMENT = Pattern.compile("(\\d+)" + Pattern.quote(EXTENSION));
+  /**
+   * The size of a record header: the length of the record, and its state.
+   */
+  private static final int HEADER = Integer.BYTES + 1;
+  private static final byte PENDING = 0;
+  private static final byte CONFIRMED = 1;
+  /**
+   * The time to wait before reopening a channel closed by a channel error, in milliseconds.
+   */
+  private static final long REOPEN_DELAY = TimeUnit.SECONDS.toMillis(1);
+  private final Path directory;
+  private final int segmentSize;
+  private final boolean sync;
+  private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+  /**
+   * The records sent on the channel since it was last opened or recovered, and not yet confirmed.
+   *
+   * <p>Sequence numbers start over on a new or recovered channel, so these are replaced as soon as the channel shuts
+   * down, before anything else can be sent on it.</p>
+   */
+  private volatile Unconfirmed unconfirmed = new Unconfirmed();
+  private final Object sending = new Object();
+  private @Nullable Segment segment;
+  private @Nullable Bunny bunny;
+  private @Nullable Channel channel;
+
+  /**
+   * Constructs a new outbox.
+   *
+   * @param directory the directory the log is written to
+   * @param segmentSize the size of a log segment, in bytes
+   * @param sync if records should be forced to the storage device before they are sent, rather than only
+   *     surviving a crash of the process
+   * @throws IOException if the directory could not be created
+   */
+  public Outbox(final @NonNull Path directory, final int segmentSize, final boolean sync) throws IOException {
+    checkArgument(segmentSize > HEADER, "segment size must be greater than %s", HEADER);
+    this.directory = Files.createDirectories(directory);
+    this.segmentSize = segmentSize;
+    this.sync = sync;
+  }
+
+  /**
+   * Opens this outbox, sending any messages left unconfirmed by a previous process.
+   *
+   * @param bunny the bunny
+   * @throws IOException if an exception is encountered while opening
+   */
+  synchronized void open(final @NonNull Bunny bunny) throws IOException {
+    if(this.bunny == null) {
+      this.bunny = bunny;
+      this.load();
+      bunny.onRecovery(this::replay);
+    }
+    if(this.channel == null || !this.channel.isOpen()) {
+      final Channel channel = bunny.createChannel();
+      channel.confirmSelect();
+      channel.addConfirmListener(new Listener());
+      channel.addShutdownListener(this::closed);
+      synchronized(this.sending) {
+        this.channel = channel;
+      }
+      this.replay();
+    }
+  }
+
+  /**
+   * Handles the channel being closed.
+   *
+   * <p>A channel closed along with the connection is recovered with it, but one closed by a channel error - such as
+   * publishing to an exchange which does not exist - is not, so it is reopened.</p>
+   *
+   * @param cause the cause
+   */
+  private void closed(final ShutdownSignalException cause) {
+    synchronized(this.sending) {
+      // confirms of records sent on the channel will never arrive - they remain pending, and are replayed
+      this.unconfirmed = new Unconfirmed();
+    }
+    if(cause.isHardError() || cause.isInitiatedByApplication()) {
+      return;
+    }
+    LOGGER.error("Outbox '{}' channel was closed, reopening it in {}ms: {}", this.directory, REOPEN_DELAY, cause.getMessage());
+    final Bunny bunny = this.bunny;
+    bunny.scheduler().schedule(() -> bunny.executor().execute(this::reopen), REOPEN_DELAY, TimeUnit.MILLISECONDS);
+  }
+
+  private void reopen() {
+    if(!this.bunny.active()) {
+      return;
+    }
+    try {
+      this.open(this.bunny);
+    } catch(final IOException e) {
+      LOGGER.error(String.format("Could not reopen outbox '%s' channel, retrying in %dms", this.directory, REOPEN_DELAY), e);
+      this.bunny.scheduler().schedule(() -> this.bunny.executor().execute(this::reopen), REOPEN_DELAY, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Appends a message to the log, and sends it.
+   *
+   * @param exchange the exchange name
+   * @param routingKey the routing key
+   * @param mandatory if the {@code mandatory} flag should be set
+   * @param immediate if the {@code immediate} flag should be set
+   * @param properties the properties
+   * @param body the body
+   * @throws IOException if an exception is encountered while appending the message
+   * @throws IllegalArgumentException if a header value is not of a type which can be sent in an AMQP field table
+   */
+  void publish(final @NonNull String exchange, final @NonNull String routingKey, final boolean mandatory, final boolean immediate, final AMQP.@NonNull BasicProperties properties, final byte@NonNull[] body) throws IOException {
+    final Entry entry = new Entry(exchange, routingKey, mandatory, immediate, properties, body);
+    this.send(this.append(entry), entry);
+  }
+
+  private synchronized Record append(final Entry entry) throws IOException {
+    final byte[] bytes = entry.write();
+    if(this.segment == null || this.segment.buffer.remaining() < HEADER + bytes.length) {
+      this.roll(HEADER + bytes.length);
+    }
+    final Segment segment = this.segment;
+    final int position = segment.buffer.position();
+    segment.outstanding.incrementAndGet();
+    // the length is written last, so a partially written record is never read
+    segment.buffer.position(position + Integer.BYTES);
+    segment.buffer.put(PENDING);
+    segment.buffer.put(bytes);
+    segment.buffer.putInt(position, bytes.length);
+    if(this.sync) {
+      segment.buffer.force();
+    }
+    return new Record(segment, position);
+  }
+
+  private void send(final Record record, final Entry entry) {
+    synchronized(this.sending) {
+      if(this.channel == null || !this.channel.isOpen()) {
+        // sent when the channel is reopened or the connection is recovered
+        LOGGER.debug("Outbox '{}' channel is closed, message '{}' will be sent once it is open", this.directory, entry.properties.getMessageId());
+        return;
+      }
+      final Unconfirmed unconfirmed = this.unconfirmed;
+      if(!unconfirmed.records.add(record)) {
+        // already sent on this channel
+        return;
+      }
+      final long sequence = this.channel.getNextPublishSeqNo();
+      unconfirmed.sequences.put(sequence, record);
+      try {
+        this.channel.basicPublish(entry.exchange, entry.routingKey, entry.mandatory, entry.immediate, entry.properties, entry.body);
+      } catch(final IOException e) {
+        unconfirmed.sequences.remove(sequence);
+        unconfirmed.records.remove(record);
+        LOGGER.warn("Could not send message '{}' from outbox, it will be sent again on recovery: {}", entry.properties.getMessageId(), e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Sends every unconfirmed record which has not been sent on the channel since it was opened or recovered.
+   */
+  private void replay() {
+    int count = 0;
+    for(final Segment segment : this.segments.values()) {
+      for(final Record record : segment.pending()) {
+        try {
+          this.send(record, record.read());
+          count++;
+        } catch(final IOException e) {
+          LOGGER.error("Exception reading record from outbox", e);
+        }
+      }
+    }
+    if(count > 0) {
+      LOGGER.info("Sent {} unconfirmed message(s) from outbox '{}'", count, this.directory);
+    }
+  }
+
+  private void confirm(final Record record) {
+    final Segment segment = record.segment;
+    synchronized(segment) {
+      if(segment.buffer.get(record.position + Integer.BYTES) == CONFIRMED) {
+        return;
+      }
+      segment.buffer.put(record.position + Integer.BYTES, CONFIRMED);
+    }
+    if(segment.outstanding.decrementAndGet() == 0) {
+      this.release(segment);
+    }
+  }
+
+  private void resend(final Record record) {
+    try {
+      this.send(record, record.read());
+    } catch(final IOException e) {
+      LOGGER.error("Exception reading record from outbox", e);
+    }
+  }
+
+  private void roll(final int minimumSize) throws IOException {
+    final Segment previous = this.segment;
+    final long id = this.segments.isEmpty() ? 0 : this.segments.lastKey() + 1;
+    final Path path = this.directory.resolve(id + EXTENSION);
+    try(final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      this.segment = new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(this.segmentSize, minimumSize)));
+    }
+    this.segments.put(id, this.segment);
+    if(previous != null) {
+      previous.sealed = true;
+      if(previous.outstanding.get() == 0) {
+        this.release(previous);
+      }
+    }
+  }
+
+  /**
+   * Deletes a segment once it is sealed and every record in it has been confirmed.
+   *
+   * @param segment the segment
+   */
+  private void release(final Segment segment) {
+    if(segment.sealed && segment.outstanding.get() == 0 && segment.released.compareAndSet(false, true)) {
+      this.segments.remove(segment.id);
+      try {
+        Files.deleteIfExists(segment.path);
+      } catch(final IOException e) {
+        LOGGER.warn("Exception deleting outbox segment", e);
+      }
+    }
+  }
+
+  /**
+   * Loads segments written by a previous process.
+   *
+   * @throws IOException if an exception is encountered while loading
+   */
+  private void load() throws IOException {
+    try(final DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, "*" + EXTENSION)) {
+      for(final Path path : stream) {
+        final Matcher matcher = SEGMENT.matcher(path.getFileName().toString());
+        if(!matcher.matches()) {
+          continue;
+        }
+        final Segment segment;
+        try(final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+          segment = new Segment(Long.parseLong(matcher.group(1)), path, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        }
+        // segments are never appended to after a restart
+        segment.sealed = true;
+        segment.outstanding.set(segment.pending().size());
+        this.segments.put(segment.id, segment);
+      }
+    }
+    for(final Segment segment : new ArrayList<>(this.segments.values())) {
+      this.release(segment);
+    }
+  }
+
+  private final class Listener implements ConfirmListener {
+    @Override
+    public void handleAck(final long sequence, final boolean multiple) {
+      for(final Record record : this.take(sequence, multiple)) {
+        Outbox.this.confirm(record);
+      }
+    }
+
+    @Override
+    public void handleNack(final long sequence, final boolean multiple) {
+      final List<Record> records = this.take(sequence, multiple);
+      // don't block the connection thread while sending
+      Outbox.this.bunny.executor().execute(() -> records.forEach(Outbox.this::resend));
+    }
+
+    private List<Record> take(final long sequence, final boolean multiple) {
+      final Unconfirmed unconfirmed = Outbox.this.unconfirmed;
+      final List<Record> taken;
+      if(!multiple) {
+        final @Nullable Record record = unconfirmed.sequences.remove(sequence);
+        taken = record != null ? Collections.singletonList(record) : Collections.emptyList();
+      } else {
+        final NavigableMap<Long, Record> records = unconfirmed.sequences.headMap(sequence, true);
+        taken = new ArrayList<>(records.values());
+        records.clear();
+      }
+      unconfirmed.records.removeAll(taken);
+      return taken;
+    }
+  }
+
+  /**
+   * The records sent on a channel which have not been confirmed.
+   */
+  private static final class Unconfirmed {
+    /**
+     * A map of publish sequence numbers to records.
+     */
+    final ConcurrentNavigableMap<Long, Record> sequences = new ConcurrentSkipListMap<>();
+    final Set<Record> records = ConcurrentHashMap.newKeySet();
+  }
+
+  private static final class Segment {
+    final long id;
+    final Path path;
+    final MappedByteBuffer buffer;
+    /**
+     * The number of records which have not been confirmed.
+     */
+    final AtomicInteger outstanding = new AtomicInteger();
+    final AtomicBoolean released = new AtomicBoolean();
+    /**
+     * If no more records will be appended to this segment.
+     */
+    volatile boolean sealed;
+
+    Segment(final long id, final Path path, final MappedByteBuffer buffer) {
+      this.id = id;
+      this.path = path;
+      this.buffer = buffer;
+    }
+
+    /**
+     * Gets the records in this segment which have not been confirmed.
+     *
+     * @return the unconfirmed records
+     */
+    synchronized List<Record> pending() {
+      final List<Record> records = new ArrayList<>();
+      final ByteBuffer buffer = this.buffer.duplicate();
+      buffer.position(0);
+      while(buffer.remaining() >= HEADER) {
+        final int position = buffer.position();
+        final int length = buffer.getInt();
+        if(length <= 0 || length > buffer.remaining() - 1) {
+          break;
+        }
+        if(buffer.get() == PENDING) {
+          records.add(new Record(this, position));
+        }
+        buffer.position(buffer.position() + length);
+      }
+      return records;
+    }
+  }
+
+  private static final class Record {
+    final Segment segment;
+    final int position;
+
+    Record(final Segment segment, final int position) {
+      this.segment = segment;
+      this.position = position;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if(this == other) {
+        return true;
+      }
+      if(!(other instanceof Record)) {
+        return false;
+      }
+      final Record that = (Record) other;
+      return this.segment == that.segment && this.position == that.position;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Long.hashCode(this.segment.id) + this.position;
+    }
+
+    Entry read() throws IOException {
+      final ByteBuffer buffer = this.segment.buffer.duplicate();
+      final byte[] bytes = new byte[buffer.getInt(this.position)];
+      buffer.position(this.position + HEADER);
+      buffer.get(bytes);
+      return Entry.read(bytes);
+    }
+  }
+
+  /**
+   * A message in the log.
+   */
+  private static final class Entry {
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte BYTES = 6;
+    private static final byte DATE = 7;
+    private static final byte LONG_STRING = 8;
+    private static final byte SHORT = 9;
+    private static final byte BYTE = 10;
+    private static final byte FLOAT = 11;
+    private static final byte DECIMAL = 12;
+    private static final byte TABLE = 13;
+    private static final byte ARRAY = 14;
+    final String exchange;
+    final String routingKey;
+    final boolean mandatory;
+    final boolean immediate;
+    final AMQP.BasicProperties properties;
+    final byte[] body;
+
+    Entry(final String exchange, final String routingKey, final boolean mandatory, final boolean immediate, final AMQP.BasicProperties properties, final byte[] body) {
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.mandatory = mandatory;
+      this.immediate = immediate;
+      this.properties = properties;
+      this.body = body;
+    }
+
+    byte[] write() throws IOException {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(this.body.length + 256);
+      final DataOutputStream out = new DataOutputStream(bytes);
+      out.writeUTF(this.exchange);
+      out.writeUTF(this.routingKey);
+      out.writeBoolean(this.mandatory);
+      out.writeBoolean(this.immediate);
+      writeValue(out, this.properties.getContentType());
+      writeValue(out, this.properties.getContentEncoding());
+      final @Nullable Map<String, Object> headers = this.properties.getHeaders();
+      if(headers != null) {
+        writeTable(out, headers);
+      } else {
+        out.writeInt(-1);
+      }
+      writeValue(out, this.properties.getDeliveryMode());
+      writeValue(out, this.properties.getPriority());
+      writeValue(out, this.properties.getCorrelationId());
+      writeValue(out, this.properties.getReplyTo());
+      writeValue(out, this.properties.getExpiration());
+      writeValue(out, this.properties.getMessageId());
+      writeValue(out, this.properties.getTimestamp());
+      writeValue(out, this.properties.getType());
+      writeValue(out, this.properties.getUserId());
+      writeValue(out, this.properties.getAppId());
+      writeValue(out, this.properties.getClusterId());
+      out.writeInt(this.body.length);
+      out.write(this.body);
+      return bytes.toByteArray();
+    }
+
+    static Entry read(final byte[] bytes) throws IOException {
+      final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      final String exchange = in.readUTF();
+      final String routingKey = in.readUTF();
+      final boolean mandatory = in.readBoolean();
+      final boolean immediate = in.readBoolean();
+      final AMQP.BasicProperties.Builder properties = new AMQP.BasicProperties.Builder()
+        .contentType((String) readValue(in))
+        .contentEncoding((String) readValue(in));
+      final @Nullable Map<String, Object> headers = readTable(in);
+      if(headers != null) {
+        properties.headers(headers);
+      }
+      properties
+        .deliveryMode((Integer) readValue(in))
+        .priority((Integer) readValue(in))
+        .correlationId((String) readValue(in))
+        .replyTo((String) readValue(in))
+        .expiration((String) readValue(in))
+        .messageId((String) readValue(in))
+        .timestamp((Date) readValue(in))
+        .type((String) readValue(in))
+        .userId((String) readValue(in))
+        .appId((String) readValue(in))
+        .clusterId((String) readValue(in));
+      final byte[] body = new byte[in.readInt()];
+      in.readFully(body);
+      return new Entry(exchange, routingKey, mandatory, immediate, properties.build(), body);
+    }
+
+    private static void writeValue(final DataOutputStream out, final @Nullable Object value) throws IOException {
+      if(value == null) {
+        out.writeByte(NULL);
+      } else if(value instanceof Integer) {
+        out.writeByte(INTEGER);
+        out.writeInt((Integer) value);
+      } else if(value instanceof Long) {
+        out.writeByte(LONG);
+        out.writeLong((Long) value);
+      } else if(value instanceof Boolean) {
+        out.writeByte(BOOLEAN);
+        out.writeBoolean((Boolean) value);
+      } else if(value instanceof Double) {
+        out.writeByte(DOUBLE);
+        out.writeDouble((Double) value);
+      } else if(value instanceof byte[]) {
+        out.writeByte(BYTES);
+        out.writeInt(((byte[]) value).length);
+        out.write((byte[]) value);
+      } else if(value instanceof Date) {
+        out.writeByte(DATE);
+        out.writeLong(((Date) value).getTime());
+      } else if(value instanceof String) {
+        final byte[] string = ((String) value).getBytes(StandardCharsets.UTF_8);
+        out.writeByte(STRING);
+        out.writeInt(string.length);
+        out.write(string);
+      } else if(value instanceof LongString) {
+        final byte[] string = ((LongString) value).getBytes();
+        out.writeByte(LONG_STRING);
+        out.writeInt(string.length);
+        out.write(string);
+      } else if(value instanceof Short) {
+        out.writeByte(SHORT);
+        out.writeShort((Short) value);
+      } else if(value instanceof Byte) {
+        out.writeByte(BYTE);
+        out.writeByte((Byte) value);
+      } else if(value instanceof Float) {
+        out.writeByte(FLOAT);
+        out.writeFloat((Float) value);
+      } else if(value instanceof BigDecimal) {
+        final byte[] unscaled = ((BigDecimal) value).unscaledValue().toByteArray();
+        out.writeByte(DECIMAL);
+        out.writeInt(((BigDecimal) value).scale());
+        out.writeInt(unscaled.length);
+        out.write(unscaled);
+      } else if(value instanceof Map) {
+        out.writeByte(TABLE);
+        writeTable(out, (Map<?, ?>) value);
+      } else if(value instanceof List || value instanceof Object[]) {
+        // arrays are sent as field arrays too, so are read back as lists
+        final List<?> values = value instanceof List ? (List<?>) value : Arrays.asList((Object[]) value);
+        out.writeByte(ARRAY);
+        out.writeInt(values.size());
+        for(final Object element : values) {
+          writeValue(out, element);
+        }
+      } else {
+        throw new IllegalArgumentException(String.format("Header values of type %s cannot be sent", value.getClass().getName()));
+      }
+    }
+
+    private static void writeTable(final DataOutputStream out, final Map<?, ?> table) throws IOException {
+      out.writeInt(table.size());
+      for(final Map.Entry<?, ?> entry : table.entrySet()) {
+        if(!(entry.getKey() instanceof String)) {
+          throw new IllegalArgumentException(String.format("Field table keys must be strings, not %s", entry.getKey()));
+        }
+        out.writeUTF((String) entry.getKey());
+        writeValue(out, entry.getValue());
+      }
+    }
+
+    private static @Nullable Map<String, Object> readTable(final DataInputStream in) throws IOException {
+      final int size = in.readInt();
+      if(size < 0) {
+        return null;
+      }
+      final Map<String, Object> table = new HashMap<>(size);
+      for(int i = 0; i < size; i++) {
+        table.put(in.readUTF(), readValue(in));
+      }
+      return table;
+    }
+
+    private static @Nullable Object readValue(final DataInputStream in) throws IOException {
+      final byte type = in.readByte();
+      switch(type) {
+        case NULL:
+          return null;
+        case INTEGER:
+          return in.readInt();
+        case LONG:
+          return in.readLong();
+        case BOOLEAN:
+          return in.readBoolean();
+        case DOUBLE:
+          return in.readDouble();
+        case BYTES:
+        case STRING:
+          final byte[] bytes = new byte[in.readInt()];
+          in.readFully(bytes);
+          return type == BYTES ? bytes : new String(bytes, StandardCharsets.UTF_8);
+        case DATE:
+          return new Date(in.readLong());
+        case LONG_STRING:
+          final byte[] string = new byte[in.readInt()];
+          in.readFully(string);
+          return LongStringHelper.asLongString(string);
+        case SHORT:
+          return in.readShort();
+        case BYTE:
+          return in.readByte();
+        case FLOAT:
+          return in.readFloat();
+        case DECIMAL:
+          final int scale = in.readInt();
+          final byte[] unscaled = new byte[in.readInt()];
+          in.readFully(unscaled);
+          return new BigDecimal(new BigInteger(unscaled), scale);
+        case TABLE:
+          return readTable(in);
+        case ARRAY:
+          final int size = in.readInt();
+          final List<Object> values = new ArrayList<>(size);
+          for(int i = 0; i < size; i++) {
+            values.add(readValue(in));
+          }
+          return values;
+        default:
+          throw new IOException("unknown value type " + type);
+      }
+    }
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded buffer of deliveries which are dispatched highest priority first.
+ *
+ * <p>Deliveries of equal priority are dispatched in the order they were received. A delivery which has
+ * waited longer than the starvation timeout is dispatched next regardless of its priority.</p>
+ *
+ * <p>Deliveries are dispatched one at a time, by a single drain running on the executor.</p>
+ */
+final class PriorityDispatcher {
+  private static final Logger LOGGER = LoggerFactory.getLogger(PriorityDispatcher.class);
+  /**
+   * The highest priority a message can have.
+   */
+  private static final int MAXIMUM_PRIORITY = 255;
+  private final Executor executor;
+  private final int capacity;
+  private final long starvation;
+  private final Lock lock = new ReentrantLock();
+  private final Condition notFull = this.lock.newCondition();
+  /**
+   * The buffered deliveries of each priority, in the order they were received.
+   */
+  @SuppressWarnings("unchecked")
+  private final Deque<Task>[] byPriority = new Deque[MAXIMUM_PRIORITY + 1];
+  private final Deque<Task> byAge = new ArrayDeque<>();
+  /**
+   * The highest priority which may have buffered deliveries.
+   */
+  private int highest;
+  private int size;
+  private boolean draining;
+
+  /**
+   * Constructs a new dispatcher.
+   *
+   * @param executor the executor to dispatch on
+   * @param capacity the maximum number of buffered deliveries
+   * @param starvation the maximum time a delivery may wait before it is dispatched regardless of priority, in milliseconds
+   */
+  PriorityDispatcher(final Executor executor, final int capacity, final long starvation) {
+    this.executor = executor;
+    this.capacity = capacity;
+    this.starvation = TimeUnit.MILLISECONDS.toNanos(starvation);
+  }
+
+  /**
+   * Buffers a delivery, waiting for space if the buffer is full.
+   *
+   * @param priority the priority, or {@code null} for the lowest priority
+   * @param task the task which handles the delivery
+   * @throws InterruptedException if interrupted while waiting for space
+   */
+  void submit(final @Nullable Integer priority, final Runnable task) throws InterruptedException {
+    this.lock.lock();
+    try {
+      while(this.size >= this.capacity) {
+        this.notFull.await();
+      }
+      final Task entry = new Task(priority != null ? Math.min(Math.max(priority, 0), MAXIMUM_PRIORITY) : 0, System.nanoTime(), task);
+      if(this.byPriority[entry.priority] == null) {
+        this.byPriority[entry.priority] = new ArrayDeque<>();
+      }
+      this.byPriority[entry.priority].addLast(entry);
+      this.highest = Math.max(this.highest, entry.priority);
+      this.byAge.addLast(entry);
+      this.size++;
+      if(!this.draining) {
+        this.draining = true;
+        this.executor.execute(this::drain);
+      }
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  private void drain() {
+    while(true) {
+      final Task task;
+      this.lock.lock();
+      try {
+        task = this.next();
+        if(task == null) {
+          this.draining = false;
+          return;
+        }
+        this.notFull.signal();
+      } finally {
+        this.lock.unlock();
+      }
+      try {
+        task.task.run();
+      } catch(final Throwable t) {
+        LOGGER.error("Exception dispatching delivery", t);
+      }
+    }
+  }
+
+  private @Nullable Task next() {
+    if(this.size == 0) {
+      return null;
+    }
+    // entries handed out by priority are removed lazily from the age order
+    while(this.byAge.peekFirst().taken) {
+      this.byAge.pollFirst();
+    }
+    final Task oldest = this.byAge.peekFirst();
+    final Task task;
+    if(System.nanoTime() - oldest.received >= this.starvation) {
+      // the oldest delivery is also the oldest of its priority
+      task = this.byAge.pollFirst();
+      this.byPriority[task.priority].pollFirst();
+    } else {
+      while(this.byPriority[this.highest] == null || this.byPriority[this.highest].isEmpty()) {
+        this.highest--;
+      }
+      task = this.byPriority[this.highest].pollFirst();
+    }
+    task.taken = true;
+    this.size--;
+    return task;
+  }
+
+  private static final class Task {
+    final int priority;
+    final long received;
+    final Runnable task;
+    boolean taken;
+
+    Task(final int priority, final long received, final Runnable task) {
+      this.priority = priority;
+      this.received = received;
+      this.task = task;
+    }
+  }
+}
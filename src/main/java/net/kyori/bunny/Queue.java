@@ -24,15 +24,22 @@
 package net.kyori.bunny;
 
 import com.google.common.reflect.TypeToken;
+import com.rabbitmq.client.AMQP;
+import net.kyori.bunny.message.AsyncMessageConsumer;
+import net.kyori.bunny.message.BatchMessageConsumer;
 import net.kyori.bunny.message.Consume;
+import net.kyori.bunny.message.Delivery;
 import net.kyori.bunny.message.Message;
 import net.kyori.bunny.message.MessageConsumer;
 import net.kyori.bunny.message.TargetedMessageConsumer;
 import net.kyori.lunar.Named;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.reactivestreams.Publisher;
 
 import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 /**
  * Represents an AMQP queue.
@@ -106,6 +113,208 @@ public interface Queue extends Named {
    */
   <M extends Message> @NonNull Subscription subscribe(final @NonNull TypeToken<M> type, final @NonNull TargetedMessageConsumer<M> consumer);
 
+  /**
+   * Creates a subscription which only receives messages whose properties match a filter.
+   *
+   * <p>The filter is tested against the message properties before the message is decoded, so messages which
+   * no subscription accepts are never decoded.</p>
+   *
+   * @param type the message class
+   * @param filter the properties filter
+   * @param consumer the message consumer
+   * @param <M> the message type
+   * @return a representation of the subscription
+   */
+  default <M extends Message> @NonNull Subscription subscribe(final @NonNull Class<M> type, final @NonNull Predicate<AMQP.BasicProperties> filter, final @NonNull TargetedMessageConsumer<M> consumer) {
+    return this.subscribe(TypeToken.of(type), filter, consumer);
+  }
+
+  /**
+   * Creates a subscription which only receives messages whose properties match a filter.
+   *
+   * <p>The filter is tested against the message properties before the message is decoded, so messages which
+   * no subscription accepts are never decoded.</p>
+   *
+   * @param type the message class
+   * @param filter the properties filter
+   * @param consumer the message consumer
+   * @param <M> the message type
+   * @return a representation of the subscription
+   */
+  <M extends Message> @NonNull Subscription subscribe(final @NonNull TypeToken<M> type, final @NonNull Predicate<AMQP.BasicProperties> filter, final @NonNull TargetedMessageConsumer<M> consumer);
+
+  /**
+   * Creates a subscription which only receives messages with a matching routing key.
+   *
+   * <p>The pattern uses the syntax of a topic exchange binding: words are separated by {@code .}, {@code *}
+   * matches exactly one word and {@code #} matches zero or more words. Messages are matched before they are
+   * decoded.</p>
+   *
+   * @param type the message class
+   * @param pattern the routing key pattern
+   * @param consumer the message consumer
+   * @param <M> the message type
+   * @return a representation of the subscription
+   */
+  default <M extends Message> @NonNull Subscription subscribe(final @NonNull Class<M> type, final @NonNull String pattern, final @NonNull TargetedMessageConsumer<M> consumer) {
+    return this.subscribe(TypeToken.of(type), pattern, consumer);
+  }
+
+  /**
+   * Creates a subscription which only receives messages with a matching routing key.
+   *
+   * <p>The pattern uses the syntax of a topic exchange binding: words are separated by {@code .}, {@code *}
+   * matches exactly one word and {@code #} matches zero or more words. Messages are matched before they are
+   * decoded.</p>
+   *
+   * @param type the message class
+   * @param pattern the routing key pattern
+   * @param consumer the message consumer
+   * @param <M> the message type
+   * @return a representation of the subscription
+   */
+  <M extends Message> @NonNull Subscription subscribe(final @NonNull TypeToken<M> type, final @NonNull String pattern, final @NonNull TargetedMessageConsumer<M> consumer);
+
+  /**
+   * Creates a subscription which receives messages in batches.
+   *
+   * <p>A batch is delivered once it contains {@code size} messages, or {@code window} milliseconds after
+   * its first message was received, whichever comes first. Messages are acknowledged after the batch
+   * has been consumed. If the consumer throws, every message in the batch is rejected without being
+   * requeued, so it is dead-lettered if this queue has a dead letter exchange.</p>
+   *
+   * @param type the message class
+   * @param size the maximum number of messages in a batch
+   * @param window the maximum time to wait for a batch to fill, in milliseconds
+   * @param consumer the batch consumer
+   * @param <M> the message type
+   * @return a representation of the subscription
+   */
+  default <M extends Message> @NonNull Subscription subscribe(final @NonNull Class<M> type, final int size, final long window, final @NonNull BatchMessageConsumer<M> consumer) {
+    return this.subscribe(TypeToken.of(type), size, window, consumer);
+  }
+
+  /**
+   * Creates a subscription which receives messages in batches.
+   *
+   * <p>A batch is delivered once it contains {@code size} messages, or {@code window} milliseconds after
+   * its first message was received, whichever comes first. Messages are acknowledged after the batch
+   * has been consumed. If the consumer throws, every message in the batch is rejected without being
+   * requeued, so it is dead-lettered if this queue has a dead letter exchange.</p>
+   *
+   * @param type the message class
+   * @param size the maximum number of messages in a batch
+   * @param window the maximum time to wait for a batch to fill, in milliseconds
+   * @param consumer the batch consumer
+   * @param <M> the message type
+   * @return a representation of the subscription
+   */
+  <M extends Message> @NonNull Subscription subscribe(final @NonNull TypeToken<M> type, final int size, final long window, final @NonNull BatchMessageConsumer<M> consumer);
+
+  /**
+   * Creates a subscription which consumes messages asynchronously.
+   *
+   * <p>At most {@code concurrency} messages are consumed at once, and the prefetch count of this queue is limited to
+   * the concurrency where it is not otherwise managed. A message received while that many are being consumed waits
+   * briefly for one of them to finish, and is requeued if none does. A message is acknowledged once the stage returned by the consumer completes normally, and rejected
+   * without being requeued, so it is dead-lettered if this queue has a dead letter exchange, if it completes
+   * exceptionally. Only the rejected message is affected, even if it was coalesced with others.</p>
+   *
+   * @param type the message class
+   * @param concurrency the maximum number of messages being consumed at once
+   * @param consumer the consumer
+   * @param <M> the message type
+   * @return a representation of the subscription
+   */
+  default <M extends Message> @NonNull Subscription subscribeAsync(final @NonNull Class<M> type, final int concurrency, final @NonNull AsyncMessageConsumer<M> consumer) {
+    return this.subscribeAsync(TypeToken.of(type), concurrency, consumer);
+  }
+
+  /**
+   * Creates a subscription which consumes messages asynchronously.
+   *
+   * <p>At most {@code concurrency} messages are consumed at once, and the prefetch count of this queue is limited to
+   * the concurrency where it is not otherwise managed. A message received while that many are being consumed waits
+   * briefly for one of them to finish, and is requeued if none does. A message is acknowledged once the stage returned by the consumer completes normally, and rejected
+   * without being requeued, so it is dead-lettered if this queue has a dead letter exchange, if it completes
+   * exceptionally. Only the rejected message is affected, even if it was coalesced with others.</p>
+   *
+   * @param type the message type
+   * @param concurrency the maximum number of messages being consumed at once
+   * @param consumer the consumer
+   * @param <M> the message type
+   * @return a representation of the subscription
+   */
+  <M extends Message> @NonNull Subscription subscribeAsync(final @NonNull TypeToken<M> type, final int concurrency, final @NonNull AsyncMessageConsumer<M> consumer);
+
+  /**
+   * Creates a subscription which receives only the latest message for each key.
+   *
+   * <p>Messages wait to be consumed by key, and a message replaces the message waiting with the same key, which is
+   * acknowledged without being consumed. Keys are consumed one at a time, in the order they started waiting, so the
+   * number of messages waiting is bounded by the number of distinct keys however slow the consumer is. Messages with
+   * a {@code null} key are never replaced.</p>
+   *
+   * @param type the message class
+   * @param key a function extracting the key of a delivery, such as from one of its headers or a field of its message
+   * @param consumer the consumer
+   * @param <M> the message type
+   * @return a representation of the subscription
+   */
+  default <M extends Message> @NonNull Subscription subscribeLatest(final @NonNull Class<M> type, final @NonNull Function<? super Delivery<M>, ?> key, final @NonNull TargetedMessageConsumer<M> consumer) {
+    return this.subscribeLatest(TypeToken.of(type), key, consumer);
+  }
+
+  /**
+   * Creates a subscription which receives only the latest message for each key.
+   *
+   * <p>Messages wait to be consumed by key, and a message replaces the message waiting with the same key, which is
+   * acknowledged without being consumed. Keys are consumed one at a time, in the order they started waiting, so the
+   * number of messages waiting is bounded by the number of distinct keys however slow the consumer is. Messages with
+   * a {@code null} key are never replaced.</p>
+   *
+   * @param type the message class
+   * @param key a function extracting the key of a delivery, such as from one of its headers or a field of its message
+   * @param consumer the consumer
+   * @param <M> the message type
+   * @return a representation of the subscription
+   */
+  <M extends Message> @NonNull Subscription subscribeLatest(final @NonNull TypeToken<M> type, final @NonNull Function<? super Delivery<M>, ?> key, final @NonNull TargetedMessageConsumer<M> consumer);
+
+  /**
+   * Gets a publisher of the messages of a type received by this queue.
+   *
+   * <p>Each subscriber is a subscription of this queue. Messages wait to be delivered until the subscriber has
+   * requested them, and are acknowledged once they have been delivered. While there are subscribers, the prefetch
+   * count of the channels this queue consumes on follows the smallest outstanding demand, so the broker stops
+   * sending messages no subscriber has asked for instead of them waiting in memory. This is not done for queues in a
+   * {@link Queue.Impl#channelGroup() channel group}, stream queues or queues with adaptive prefetch.</p>
+   *
+   * @param type the message class
+   * @param <M> the message type
+   * @return a publisher
+   * @see Queue.Impl#prefetch()
+   */
+  default <M extends Message> @NonNull Publisher<Delivery<M>> publisher(final @NonNull Class<M> type) {
+    return this.publisher(TypeToken.of(type));
+  }
+
+  /**
+   * Gets a publisher of the messages of a type received by this queue.
+   *
+   * <p>Each subscriber is a subscription of this queue. Messages wait to be delivered until the subscriber has
+   * requested them, and are acknowledged once they have been delivered. While there are subscribers, the prefetch
+   * count of the channels this queue consumes on follows the smallest outstanding demand, so the broker stops
+   * sending messages no subscriber has asked for instead of them waiting in memory. This is not done for queues in a
+   * {@link Queue.Impl#channelGroup() channel group}, stream queues or queues with adaptive prefetch.</p>
+   *
+   * @param type the message type
+   * @param <M> the message type
+   * @return a publisher
+   * @see Queue.Impl#prefetch()
+   */
+  <M extends Message> @NonNull Publisher<Delivery<M>> publisher(final @NonNull TypeToken<M> type);
+
   /**
    * Creates subscriptions for all {@link Consume consumers} found in {@code consumer}.
    *
@@ -113,6 +322,13 @@ public interface Queue extends Named {
    */
   void subscribe(final @NonNull MessageConsumer consumer);
 
+  /**
+   * Takes a snapshot of the statistics of this queue.
+   *
+   * @return the statistics
+   */
+  @NonNull QueueStatistics statistics();
+
   /**
    * An abstract implementation of a queue.
    */
@@ -23,53 +23,152 @@
  */
 package net.kyori.bunny;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.base.MoreObjects;
 import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
+import com.google.common.collect.Multimaps;
+import com.google.common.collect.SetMultimap;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
 import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.ShutdownSignalException;
+import net.kyori.bunny.message.AsyncMessageConsumer;
+import net.kyori.bunny.message.BatchMessageConsumer;
 import net.kyori.bunny.message.Consume;
+import net.kyori.bunny.message.Delivery;
 import net.kyori.bunny.message.Message;
 import net.kyori.bunny.message.MessageConsumer;
+import net.kyori.bunny.message.MessageMeta;
 import net.kyori.bunny.message.MessageRegistry;
 import net.kyori.bunny.message.TargetedMessageConsumer;
 import net.kyori.membrane.facet.Connectable;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 import javax.inject.Inject;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
 /**
  * An abstract implementation of a queue.
  */
 abstract class QueueImpl implements Connectable, Queue {
   private static final Logger LOGGER = LoggerFactory.getLogger(Queue.class);
+  private static final String CONSISTENT_HASH = "x-consistent-hash";
+  private static final String STREAM_OFFSET = "x-stream-offset";
+  private static final String DEAD_LETTER_EXCHANGE = "x-dead-letter-exchange";
+  private static final String DEAD_LETTER_ROUTING_KEY = "x-dead-letter-routing-key";
+  /**
+   * The prefetch count of stream consumers when none is configured, as the broker requires one.
+   */
+  private static final int STREAM_PREFETCH = 100;
+  /**
+   * The most messages each publisher subscriber can be sent ahead of its demand when no prefetch count is configured.
+   */
+  private static final int PUBLISHER_PREFETCH = 256;
+  /**
+   * The longest an asynchronous subscription holds up the delivery thread waiting for a message to finish, in milliseconds.
+   */
+  private static final long ASYNC_PERMIT_TIMEOUT = 100;
   private @Inject Bunny bunny;
+  private @Inject BunnyConfiguration config;
   private @Inject Gson gson;
   private @Inject MessageRegistry mr;
+  private @Inject Topology topology;
   private final @NonNull String name;
   private final boolean durable;
   private final boolean exclusive;
   private final boolean autoDelete;
   private final @Nullable Map<String, Object> arguments;
-  private @Nullable String consumerTag;
-  private final Multimap<TypeToken<? extends Message>, SubscriptionImpl<? extends Message>> consumers = HashMultimap.create();
+  private @Nullable PriorityDispatcher dispatcher;
+  private @Nullable AdaptivePrefetch prefetch;
+  private @Nullable ConsumerScaler scaler;
+  private @Nullable Watchdog watchdog;
+  private @Nullable StreamCheckpoint checkpoint;
+  /**
+   * The active consumers, in the order they were started.
+   */
+  private final Deque<ConsumerImpl> active = new ConcurrentLinkedDeque<>();
+  /**
+   * A map of exchange names to the routing keys this queue is bound with.
+   *
+   * <p>Bindings are remembered so they can be declared along with the queue.</p>
+   */
+  private final SetMultimap<String, String> bindings = Multimaps.synchronizedSetMultimap(HashMultimap.create());
+  /**
+   * If this queue has been declared on the current connection.
+   */
+  private volatile boolean declared;
+  /**
+   * The name the broker generated for this queue when it was last declared, if it is server-named.
+   */
+  private volatile @Nullable String generated;
+  private final Map<TypeToken<? extends Message>, Set<SubscriptionImpl<? extends Message>>> consumers = new ConcurrentHashMap<>();
+  /**
+   * A map of message type names to their statistics.
+   */
+  private final Map<String, TypeStatistics> statistics = new ConcurrentHashMap<>();
+  /**
+   * A map of message types to subscriptions filtered by routing key.
+   */
+  private final Map<TypeToken<? extends Message>, TopicTrie<SubscriptionImpl<? extends Message>>> routes = new ConcurrentHashMap<>();
+  /**
+   * A cache of recently seen message ids, used to drop duplicate deliveries.
+   */
+  private @Nullable Cache<String, Boolean> seen;
+  /**
+   * The subscribers of publishers of this queue.
+   */
+  private final Set<PublisherSubscription<? extends Message>> publishers = ConcurrentHashMap.newKeySet();
+  /**
+   * The asynchronous subscriptions of this queue, whose concurrency limits the prefetch count.
+   */
+  private final Set<AsyncSubscription<? extends Message>> asyncs = ConcurrentHashMap.newKeySet();
+  /**
+   * The prefetch count applied to every consumer channel by subscriber demand, or {@code 0} if unlimited.
+   */
+  private int credit;
 
   /**
    * Constructs a new queue.
@@ -113,27 +212,567 @@ abstract class QueueImpl implements Connectable, Queue {
     return this.arguments != null ? Collections.unmodifiableMap(this.arguments) : null;
   }
 
+  /**
+   * Gets the maximum number of message ids to remember for duplicate detection.
+   *
+   * <p>The id of a message is remembered once it has been acknowledged, so a message which is rejected or
+   * redelivered before it has been handled is not a duplicate. Duplicate detection is disabled when this is
+   * {@code 0}, which is the default.</p>
+   *
+   * @return the maximum number of message ids to remember
+   */
+  protected long deduplicationSize() {
+    return 0;
+  }
+
+  /**
+   * Gets how long a message id is remembered for duplicate detection, in milliseconds.
+   *
+   * @return how long a message id is remembered, in milliseconds
+   */
+  protected long deduplicationExpiry() {
+    return TimeUnit.MINUTES.toMillis(5);
+  }
+
+  /**
+   * Gets the store which payloads sent by reference are read from.
+   *
+   * <p>No store is used by default, and messages sent by reference are dropped.</p>
+   *
+   * @return the blob store, or {@code null}
+   */
+  protected @Nullable BlobStore blobStore() {
+    return null;
+  }
+
+  /**
+   * Gets the maximum number of deliveries buffered for local dispatch.
+   *
+   * <p>When this is greater than {@code 0}, deliveries are buffered and dispatched highest
+   * {@link AMQP.BasicProperties#getPriority() priority} first, instead of in the order they were received.
+   * Deliveries are dispatched in order on the consumer thread when this is {@code 0}, which is the default.</p>
+   *
+   * @return the maximum number of buffered deliveries
+   */
+  protected int dispatchCapacity() {
+    return 0;
+  }
+
+  /**
+   * Gets the maximum time a buffered delivery waits before it is dispatched regardless of its priority, in milliseconds.
+   *
+   * @return the maximum time a buffered delivery waits, in milliseconds
+   */
+  protected long dispatchStarvationTimeout() {
+    return TimeUnit.SECONDS.toMillis(1);
+  }
+
+  /**
+   * Gets the minimum prefetch count when the prefetch count is adaptive.
+   *
+   * @return the minimum prefetch count
+   */
+  protected int minimumPrefetch() {
+    return 1;
+  }
+
+  /**
+   * Gets the maximum prefetch count when the prefetch count is adaptive.
+   *
+   * <p>When this is greater than {@code 0}, this queue is consumed on its own channel, and the prefetch count of that
+   * channel is periodically tuned from observed handler latency so that just enough deliveries are in flight to keep
+   * handlers busy. The prefetch count is not adaptive when this is {@code 0}, which is the default.</p>
+   *
+   * @return the maximum prefetch count
+   */
+  protected int maximumPrefetch() {
+    return 0;
+  }
+
+  /**
+   * Gets the time between prefetch count adjustments, in milliseconds.
+   *
+   * @return the time between prefetch count adjustments, in milliseconds
+   */
+  protected long prefetchInterval() {
+    return TimeUnit.SECONDS.toMillis(1);
+  }
+
+  /**
+   * Gets the minimum number of consumers.
+   *
+   * @return the minimum number of consumers
+   */
+  protected int minimumConsumers() {
+    return 1;
+  }
+
+  /**
+   * Gets the maximum number of consumers.
+   *
+   * <p>When this is greater than {@code 1}, each consumer has its own channel, and consumers are added while
+   * messages are waiting and handlers are busy, and removed while the queue is empty and handlers are idle.</p>
+   *
+   * @return the maximum number of consumers
+   */
+  protected int maximumConsumers() {
+    return 1;
+  }
+
+  /**
+   * Gets the time between samples of the queue depth and handler utilization when scaling consumers, in milliseconds.
+   *
+   * @return the time between samples, in milliseconds
+   */
+  protected long scalingInterval() {
+    return TimeUnit.SECONDS.toMillis(5);
+  }
+
+  /**
+   * Gets the time after which a running subscription handler is considered stalled, in milliseconds.
+   *
+   * <p>When this is greater than {@code 0}, stalled handlers are reported along with the stack of their thread, and
+   * the {@link #stallPolicy() stall policy} is applied. Stalls are not detected when this is {@code 0}, which is the default.</p>
+   *
+   * <p>Only handlers running on the thread a message was delivered on are watched. An asynchronous handler is watched
+   * until it returns its stage, but not while the stage is pending, and handlers of batched, conflating and publisher
+   * subscriptions, which run later on other threads, are not watched.</p>
+   *
+   * @return the time after which a handler is stalled, in milliseconds
+   */
+  protected long stallThreshold() {
+    return 0;
+  }
+
+  /**
+   * Gets the action taken when a subscription handler stalls.
+   *
+   * @return the action taken when a handler stalls
+   */
+  protected @NonNull StallPolicy stallPolicy() {
+    return StallPolicy.REPORT;
+  }
+
+  /**
+   * Gets the action taken when a message is received after its deadline.
+   *
+   * <p>The deadline of a message is the time it was {@link Exchange#publish(Message, String, java.util.Date, AMQP.BasicProperties) published with},
+   * or else its {@link AMQP.BasicProperties#getExpiration() expiration} after the time it was published, if it is
+   * timestamped. Expired messages are dropped before being decoded, and counted in the {@link #statistics() statistics}
+   * of their type. Messages are delivered regardless of their deadline by default.</p>
+   *
+   * @return the action taken when a message has expired
+   */
+  protected @NonNull Expiry expiry() {
+    return Expiry.DELIVER;
+  }
+
+  /**
+   * Gets the number of shards this queue is split into.
+   *
+   * <p>When this is greater than {@code 1}, this queue is backed by that many queues named {@code <name>.<shard>},
+   * which are bound with equal weight to a consistent-hash exchange named {@code <name>.shards}. Bindings of this
+   * queue bind that exchange instead, and every shard is consumed from with the same subscriptions. Messages are
+   * spread across shards by the hash key they are {@link Exchange#publish(Message, String, String, AMQP.BasicProperties) published}
+   * with. This queue is not sharded by default.</p>
+   *
+   * @return the number of shards
+   */
+  protected int shards() {
+    return 1;
+  }
+
+  /**
+   * Gets the prefetch count of each consumer of this queue.
+   *
+   * <p>The prefetch count is unlimited when this is {@code 0}, which is the default, unless it is
+   * {@link #maximumPrefetch() adaptive}.</p>
+   *
+   * @return the prefetch count
+   */
+  protected int prefetch() {
+    return 0;
+  }
+
+  /**
+   * Gets the name of the group of queues this queue shares a consumer channel with.
+   *
+   * <p>Deliveries on a channel are dispatched one at a time, so by default, which is when this is {@code null},
+   * every consumer has its own channel and a busy queue cannot hold up the deliveries of another. Queues in the same
+   * group share one channel instead, which is opened by the first of them to consume and closed once all of them
+   * have stopped. Queues which are sharded, have more than one consumer, or have adaptive prefetch never share a
+   * channel.</p>
+   *
+   * @return the channel group name, or {@code null}
+   */
+  protected @Nullable String channelGroup() {
+    return null;
+  }
+
+  /**
+   * Gets the name of the group of queues this queue actually shares a consumer channel with.
+   *
+   * @return the channel group name, or {@code null}
+   */
+  private @Nullable String group() {
+    if(this.shards() > 1 || this.minimumConsumers() > 1 || this.maximumConsumers() > 1 || this.maximumPrefetch() > 0) {
+      return null;
+    }
+    return this.channelGroup();
+  }
+
+  /**
+   * Gets the offset to start consuming from when this is a stream queue.
+   *
+   * <p>When this is not {@code null}, this queue is declared as a stream queue, and is consumed by a single
+   * consumer starting at this offset - or just after the last {@link #streamCheckpoint() checkpointed} offset, if
+   * there is one. A stream queue must be durable, and not exclusive or auto-deleting, and cannot be sharded or have
+   * adaptive prefetch. Like every queue, it is consumed with manual acknowledgement, and the broker requires a
+   * prefetch count, so it is consumed with a prefetch count of {@code 100} unless {@link #prefetch()} is set. As the client would recover its consumer at the original offset, a stream queue requires
+   * {@link BunnyConfiguration#topologyRecovery() topology recovery} to be disabled when the connection is
+   * automatically recovered. This is not a stream queue by default.</p>
+   *
+   * @return the offset to start consuming from, or {@code null}
+   */
+  protected @Nullable StreamOffset stream() {
+    return null;
+  }
+
+  /**
+   * Gets the file the offset of this stream queue up to which every message has been processed is written to.
+   *
+   * <p>Consuming resumes from the offset in this file when it exists. When this is {@code null}, which is the
+   * default, consuming resumes from the last processed offset only after the connection is recovered.</p>
+   *
+   * @return the checkpoint file, or {@code null}
+   */
+  protected @Nullable Path streamCheckpoint() {
+    return null;
+  }
+
+  /**
+   * Gets the time between writes of the {@link #streamCheckpoint() checkpoint file}, in milliseconds.
+   *
+   * @return the time between writes, in milliseconds
+   */
+  protected long streamCheckpointInterval() {
+    return TimeUnit.SECONDS.toMillis(5);
+  }
+
   @Override
   public void connect() throws IOException {
-    LOGGER.info("Declaring queue '{}'", this);
-    this.bunny.channel().queueDeclare(this.name, this.durable, this.exclusive, this.autoDelete, this.arguments);
-    this.consumerTag = this.bunny.channel().basicConsume(this.name, false, "", false, true, null, new ConsumerImpl());
-    LOGGER.info("Starting consume on '{}' with tag '{}'", this, this.consumerTag);
+    final long stallThreshold = this.stallThreshold();
+    if(stallThreshold > 0 && this.watchdog == null) {
+      this.watchdog = new Watchdog(this.bunny, this.name, stallThreshold, this.stallPolicy());
+    }
+    checkState(!this.name.isEmpty() || this.shards() <= 1, "server-named queue cannot be sharded");
+    final boolean stream = this.stream() != null;
+    if(stream) {
+      checkState(this.durable, "stream queue '%s' must be durable", this.name);
+      checkState(!this.exclusive, "stream queue '%s' cannot be exclusive", this.name);
+      checkState(!this.autoDelete, "stream queue '%s' cannot be auto-deleted", this.name);
+      checkState(this.shards() <= 1, "stream queue '%s' cannot be sharded", this.name);
+      checkState(this.maximumPrefetch() <= 0, "stream queue '%s' cannot have adaptive prefetch, as streams do not support a global prefetch count", this.name);
+      checkState(this.prefetch() >= 0, "stream queue '%s' requires a positive prefetch count, or 0 for the default of %s", this.name, STREAM_PREFETCH);
+      checkState(!this.config.automaticRecovery() || !this.config.topologyRecovery(), "stream queue '%s' requires topology recovery to be disabled", this.name);
+      if(this.checkpoint == null) {
+        this.checkpoint = new StreamCheckpoint(this.bunny, this.streamCheckpoint(), this.streamCheckpointInterval());
+      }
+    }
+    // every consumer of a stream receives every message, so a stream queue has a single consumer
+    final int minimumConsumers = stream ? 1 : Math.max(this.shards(), this.minimumConsumers());
+    final int maximumConsumers = this.maximumConsumers();
+    if(!stream && maximumConsumers > minimumConsumers && this.scaler == null) {
+      this.scaler = new ConsumerScaler(this.bunny, this.name, this::queues, new ConsumerPool(), minimumConsumers, maximumConsumers, this.scalingInterval());
+    }
+    final int maximumPrefetch = this.maximumPrefetch();
+    if(!stream && maximumPrefetch > 0 && this.prefetch == null) {
+      this.prefetch = new AdaptivePrefetch(this.bunny, this.name, this.minimumPrefetch(), maximumPrefetch, this.prefetchInterval());
+    }
+    final int dispatchCapacity = this.dispatchCapacity();
+    if(dispatchCapacity > 0 && this.dispatcher == null) {
+      this.dispatcher = new PriorityDispatcher(this.bunny.executor(), dispatchCapacity, this.dispatchStarvationTimeout());
+    }
+    final long deduplicationSize = this.deduplicationSize();
+    if(deduplicationSize > 0 && this.seen == null) {
+      this.seen = Caffeine.newBuilder()
+        .maximumSize(deduplicationSize)
+        .expireAfterWrite(this.deduplicationExpiry(), TimeUnit.MILLISECONDS)
+        .build();
+    }
+    if(!this.topology.declared(this)) {
+      LOGGER.info("Declaring queue '{}'", this);
+      // declared on a channel of its own, so a failed declaration closes it rather than the shared channel
+      final Channel channel = this.bunny.createChannel();
+      try {
+        this.declareQueues(channel, true);
+        this.declareBindings(channel, true);
+      } finally {
+        if(channel.isOpen()) {
+          try {
+            channel.close();
+          } catch(final TimeoutException e) {
+            LOGGER.error("Exception closing channel", e);
+          }
+        }
+      }
+    }
+    this.declared = true;
+    this.topology.remember(this);
+    while(this.active.size() < minimumConsumers) {
+      this.consume();
+    }
+    if(this.scaler != null) {
+      this.scaler.start();
+    }
+    if(this.watchdog != null) {
+      this.watchdog.start();
+    }
+    if(this.checkpoint != null) {
+      this.checkpoint.start();
+    }
+  }
+
+  private synchronized void consume() throws IOException {
+    // consumers are spread evenly over shards, and are cancelled in reverse order
+    final ConsumerImpl consumer = new ConsumerImpl(this.open(), this.active.size() % this.queues().size());
+    consumer.consume();
+    this.active.addLast(consumer);
+  }
+
+  private synchronized void cancel() throws IOException {
+    final @Nullable ConsumerImpl consumer = this.active.pollLast();
+    if(consumer != null) {
+      consumer.cancel();
+    }
+  }
+
+  /**
+   * Opens a channel to consume on.
+   *
+   * @return the channel
+   * @throws IOException if an exception is encountered while opening the channel
+   */
+  private Channel open() throws IOException {
+    if(this.prefetch != null) {
+      return this.prefetch.open();
+    }
+    final @Nullable String group = this.group();
+    if(group != null) {
+      return this.bunny.acquire(group);
+    }
+    final Channel channel = this.bunny.createChannel();
+    synchronized(this.publishers) {
+      if(this.credit > 0) {
+        channel.basicQos(this.credit, true);
+      }
+    }
+    return channel;
+  }
+
+  /**
+   * Closes a channel opened by {@link #open()}.
+   *
+   * @param channel the channel
+   */
+  private void close(final Channel channel) {
+    final @Nullable String group = this.group();
+    if(this.prefetch != null) {
+      this.prefetch.close(channel);
+    } else if(group != null) {
+      this.bunny.release(group, channel);
+    } else if(channel.isOpen()) {
+      try {
+        channel.close();
+      } catch(final IOException | TimeoutException e) {
+        LOGGER.error("Exception closing channel", e);
+      }
+    }
+  }
+
+  /**
+   * Resumes consuming once the connection has been recovered without its topology.
+   *
+   * @throws IOException if an exception is encountered while consuming
+   */
+  void recover() throws IOException {
+    if(this.prefetch != null) {
+      this.prefetch.recovered();
+    }
+    for(final ConsumerImpl consumer : this.active) {
+      consumer.consume();
+    }
+  }
+
+  /**
+   * Computes a fingerprint of this queue's declaration, including its bindings.
+   *
+   * @return the fingerprint
+   */
+  int fingerprint() {
+    return Objects.hash(this.name, this.durable, this.exclusive, this.autoDelete, this.declaredArguments(), this.bindings, this.shards());
+  }
+
+  /**
+   * Verifies that this queue exists.
+   *
+   * @param channel the channel to verify on, which is closed if this queue does not exist
+   * @throws IOException if this queue does not exist
+   */
+  void verify(final @NonNull Channel channel) throws IOException {
+    if(this.shards() > 1) {
+      channel.exchangeDeclarePassive(this.shardExchange());
+    }
+    for(final String queue : this.queues()) {
+      channel.queueDeclarePassive(queue);
+    }
+  }
+
+  /**
+   * Gets the names of the queues backing this queue.
+   *
+   * @return the queue names
+   */
+  private List<String> queues() {
+    final int shards = this.shards();
+    if(shards <= 1) {
+      return Collections.singletonList(this.generated != null ? this.generated : this.name);
+    }
+    final List<String> queues = new ArrayList<>(shards);
+    for(int i = 0; i < shards; i++) {
+      queues.add(this.name + '.' + i);
+    }
+    return queues;
+  }
+
+  /**
+   * Gets the name of the exchange which spreads messages across shards.
+   *
+   * @return the exchange name
+   */
+  private String shardExchange() {
+    return this.name + ".shards";
+  }
+
+  /**
+   * Gets the arguments this queue is declared with.
+   *
+   * @return the arguments
+   */
+  private @Nullable Map<String, Object> declaredArguments() {
+    if(this.stream() == null) {
+      return this.arguments;
+    }
+    final Map<String, Object> arguments = this.arguments != null ? new HashMap<>(this.arguments) : new HashMap<>();
+    arguments.put("x-queue-type", "stream");
+    return arguments;
+  }
+
+  /**
+   * Tests if this queue is bound to an exchange.
+   *
+   * @param exchange the exchange name
+   * @return {@code true} if this queue is bound to the exchange, {@code false} otherwise
+   */
+  boolean boundTo(final @NonNull String exchange) {
+    return this.bindings.containsKey(exchange);
+  }
+
+  /**
+   * Declares this queue and its bindings without waiting for the broker to confirm them.
+   *
+   * @param channel the channel to declare on
+   * @throws IOException if an exception is encountered while declaring
+   */
+  void declare(final @NonNull Channel channel) throws IOException {
+    this.declareQueues(channel, false);
+    this.declareBindings(channel, false);
+  }
+
+  private void declareQueues(final @NonNull Channel channel, final boolean wait) throws IOException {
+    final boolean sharded = this.shards() > 1;
+    if(sharded) {
+      // hash on a header, leaving the routing key for routing to the exchange
+      final Map<String, Object> arguments = Collections.singletonMap("hash-header", Headers.HASH_KEY);
+      if(wait) {
+        channel.exchangeDeclare(this.shardExchange(), CONSISTENT_HASH, this.durable, this.autoDelete, false, arguments);
+      } else {
+        channel.exchangeDeclareNoWait(this.shardExchange(), CONSISTENT_HASH, this.durable, this.autoDelete, false, arguments);
+      }
+    }
+    final @Nullable Map<String, Object> arguments = this.declaredArguments();
+    if(this.name.isEmpty()) {
+      // the generated name is needed to bind and consume, so a server-named queue is always declared synchronously
+      this.generated = channel.queueDeclare(this.name, this.durable, this.exclusive, this.autoDelete, arguments).getQueue();
+      return;
+    }
+    for(final String queue : this.queues()) {
+      if(wait) {
+        channel.queueDeclare(queue, this.durable, this.exclusive, this.autoDelete, arguments);
+      } else {
+        channel.queueDeclareNoWait(queue, this.durable, this.exclusive, this.autoDelete, arguments);
+      }
+      if(sharded) {
+        // the routing key of a consistent-hash binding is its weight
+        if(wait) {
+          channel.queueBind(queue, this.shardExchange(), "1", null);
+        } else {
+          channel.queueBindNoWait(queue, this.shardExchange(), "1", null);
+        }
+      }
+    }
+  }
+
+  private void declareBindings(final @NonNull Channel channel, final boolean wait) throws IOException {
+    synchronized(this.bindings) {
+      for(final Map.Entry<String, String> binding : this.bindings.entries()) {
+        LOGGER.info("Binding queue '{}' to exchange '{}' with routing key '{}'", this, binding.getKey(), binding.getValue());
+        if(this.shards() > 1) {
+          if(wait) {
+            channel.exchangeBind(this.shardExchange(), binding.getKey(), binding.getValue(), null);
+          } else {
+            channel.exchangeBindNoWait(this.shardExchange(), binding.getKey(), binding.getValue(), null);
+          }
+        } else if(wait) {
+          channel.queueBind(this.queues().get(0), binding.getKey(), binding.getValue(), null);
+        } else {
+          channel.queueBindNoWait(this.queues().get(0), binding.getKey(), binding.getValue(), null);
+        }
+      }
+    }
   }
 
   @Override
   public void disconnect() throws IOException {
-    if(this.consumerTag != null && this.bunny.active()) {
-      LOGGER.info("Cancelling consume on '{}' with tag '{}'", this, this.consumerTag);
-      this.bunny.channel().basicCancel(this.consumerTag);
+    this.declared = false;
+    this.topology.forget(this);
+    if(this.scaler != null) {
+      this.scaler.stop();
+    }
+    if(this.watchdog != null) {
+      this.watchdog.stop();
+    }
+    while(!this.active.isEmpty()) {
+      this.cancel();
+    }
+    if(this.checkpoint != null) {
+      this.checkpoint.stop();
     }
   }
 
   @Override
   public void bind(final @NonNull Exchange exchange, final @NonNull String routingKey) {
+    if(!this.bindings.put(exchange.name(), routingKey) || !this.declared) {
+      return;
+    }
     try {
       LOGGER.info("Binding queue '{}' to exchange '{}' with routing key '{}'", this, exchange, routingKey);
-      this.bunny.channel().queueBind(this.name, exchange.name(), routingKey, null);
+      if(this.shards() > 1) {
+        this.bunny.channel().exchangeBind(this.shardExchange(), exchange.name(), routingKey);
+      } else {
+        this.bunny.channel().queueBind(this.queues().get(0), exchange.name(), routingKey, null);
+      }
+      this.topology.remember(this);
     } catch(final IOException e) {
       LOGGER.error("Exception binding queue", e);
     }
@@ -141,9 +780,17 @@ abstract class QueueImpl implements Connectable, Queue {
 
   @Override
   public void unbind(final @NonNull Exchange exchange, final @NonNull String routingKey) {
+    if(!this.bindings.remove(exchange.name(), routingKey) || !this.declared) {
+      return;
+    }
     try {
       LOGGER.info("Unbinding queue '{}' from exchange '{}' with routing key '{}'", this, exchange, routingKey);
-      this.bunny.channel().queueUnbind(this.name, exchange.name(), routingKey, null);
+      if(this.shards() > 1) {
+        this.bunny.channel().exchangeUnbind(this.shardExchange(), exchange.name(), routingKey);
+      } else {
+        this.bunny.channel().queueUnbind(this.queues().get(0), exchange.name(), routingKey, null);
+      }
+      this.topology.remember(this);
     } catch(final IOException e) {
       LOGGER.error("Exception unbinding queue", e);
     }
@@ -151,8 +798,104 @@ abstract class QueueImpl implements Connectable, Queue {
 
   @Override
   public <M extends Message> @NonNull Subscription subscribe(final @NonNull TypeToken<M> type, final @NonNull TargetedMessageConsumer<M> consumer) {
-    final SubscriptionImpl<M> subscription = new SubscriptionImpl<>(consumer);
-    this.consumers.put(type, subscription);
+    return this.subscribe(new TargetedSubscription<>(type, null, null, consumer));
+  }
+
+  @Override
+  public <M extends Message> @NonNull Subscription subscribe(final @NonNull TypeToken<M> type, final @NonNull Predicate<AMQP.BasicProperties> filter, final @NonNull TargetedMessageConsumer<M> consumer) {
+    return this.subscribe(new TargetedSubscription<>(type, null, filter, consumer));
+  }
+
+  @Override
+  public <M extends Message> @NonNull Subscription subscribe(final @NonNull TypeToken<M> type, final @NonNull String pattern, final @NonNull TargetedMessageConsumer<M> consumer) {
+    return this.subscribe(new TargetedSubscription<>(type, pattern, null, consumer));
+  }
+
+  @Override
+  public <M extends Message> @NonNull Subscription subscribe(final @NonNull TypeToken<M> type, final int size, final long window, final @NonNull BatchMessageConsumer<M> consumer) {
+    checkArgument(size > 0, "size must be positive");
+    checkArgument(window > 0, "window must be positive");
+    return this.subscribe(new BatchSubscription<>(type, null, null, size, window, consumer));
+  }
+
+  @Override
+  public <M extends Message> @NonNull Subscription subscribeAsync(final @NonNull TypeToken<M> type, final int concurrency, final @NonNull AsyncMessageConsumer<M> consumer) {
+    checkArgument(concurrency > 0, "concurrency must be positive");
+    final AsyncSubscription<M> subscription = new AsyncSubscription<>(type, null, null, concurrency, consumer);
+    this.asyncs.add(subscription);
+    this.subscribe(subscription);
+    this.bunny.executor().execute(this::credit);
+    return subscription;
+  }
+
+  @Override
+  public <M extends Message> @NonNull Subscription subscribeLatest(final @NonNull TypeToken<M> type, final @NonNull Function<? super Delivery<M>, ?> key, final @NonNull TargetedMessageConsumer<M> consumer) {
+    return this.subscribe(new ConflatingSubscription<>(type, null, null, key, consumer));
+  }
+
+  @Override
+  public <M extends Message> @NonNull Publisher<Delivery<M>> publisher(final @NonNull TypeToken<M> type) {
+    return subscriber -> {
+      final PublisherSubscription<M> subscription = new PublisherSubscription<>(type, subscriber);
+      subscriber.onSubscribe(subscription);
+      if(!subscription.cancelled) {
+        this.publishers.add(subscription);
+        this.subscribe(subscription);
+        this.bunny.executor().execute(this::credit);
+      }
+    };
+  }
+
+  /**
+   * Applies the smallest demand of any publisher subscriber, and the smallest concurrency of any asynchronous
+   * subscription, to the prefetch count of every channel this queue consumes on, unless they are shared or the
+   * prefetch count is managed otherwise.
+   *
+   * <p>Limiting the prefetch count to the concurrency keeps the broker from sending messages which would only wait
+   * for a permit, blocking the consumer.</p>
+   */
+  private void credit() {
+    if(this.prefetch != null || this.stream() != null || this.group() != null) {
+      return;
+    }
+    final int prefetch = this.prefetch();
+    long demand = Long.MAX_VALUE;
+    if(!this.publishers.isEmpty()) {
+      demand = prefetch > 0 ? prefetch : PUBLISHER_PREFETCH;
+      for(final PublisherSubscription<? extends Message> publisher : this.publishers) {
+        demand = Math.min(demand, publisher.requested.get());
+      }
+    }
+    for(final AsyncSubscription<? extends Message> async : this.asyncs) {
+      demand = Math.min(demand, async.concurrency);
+    }
+    // a prefetch count of 0 is unlimited, so a subscriber without demand still has one message waiting
+    final int credit = demand == Long.MAX_VALUE ? 0 : (int) Math.max(1, demand);
+    synchronized(this.publishers) {
+      if(credit == this.credit) {
+        return;
+      }
+      this.credit = credit;
+      for(final ConsumerImpl consumer : this.active) {
+        if(!consumer.channel.isOpen()) {
+          continue;
+        }
+        try {
+          consumer.channel.basicQos(credit, true);
+        } catch(final IOException e) {
+          LOGGER.error("Exception adjusting prefetch", e);
+        }
+      }
+    }
+    LOGGER.debug("Adjusted prefetch of '{}' to {} for subscriber demand", this.name, credit);
+  }
+
+  private <M extends Message> @NonNull Subscription subscribe(final @NonNull SubscriptionImpl<M> subscription) {
+    if(subscription.pattern != null) {
+      this.routes.computeIfAbsent(subscription.type, type -> new TopicTrie<>()).add(subscription.pattern, subscription);
+    } else {
+      this.consumers.computeIfAbsent(subscription.type, type -> new CopyOnWriteArraySet<>()).add(subscription);
+    }
     return subscription;
   }
 
@@ -180,6 +923,14 @@ abstract class QueueImpl implements Connectable, Queue {
       });
   }
 
+  @Override
+  public @NonNull QueueStatistics statistics() {
+    final Map<String, QueueStatistics.Type> types = new HashMap<>(this.statistics.size());
+    this.statistics.forEach((name, statistics) -> types.put(name, statistics.snapshot()));
+    final @Nullable Watchdog watchdog = this.watchdog;
+    return new QueueStatistics(types, watchdog != null ? watchdog.stalled() : 0, watchdog != null ? watchdog.stalls() : 0);
+  }
+
   @Override
   public String toString() {
     return MoreObjects.toStringHelper(this)
@@ -187,7 +938,100 @@ abstract class QueueImpl implements Connectable, Queue {
       .toString();
   }
 
+  private final class ConsumerPool implements ConsumerScaler.Pool {
+    @Override
+    public int size() {
+      return QueueImpl.this.active.size();
+    }
+
+    @Override
+    public void grow() throws IOException {
+      QueueImpl.this.consume();
+    }
+
+    @Override
+    public void shrink() throws IOException {
+      if(QueueImpl.this.active.size() > 1) {
+        QueueImpl.this.cancel();
+      }
+    }
+  }
+
   private final class ConsumerImpl implements Consumer {
+    private final Channel channel;
+    /**
+     * The index of the shard this consumer consumes from.
+     */
+    private final int shard;
+    /**
+     * The name of the queue this consumer last consumed from, which changes when a server-named queue is declared again.
+     */
+    private volatile String queue;
+    /**
+     * The number of deliveries which have not yet been acknowledged.
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile @Nullable String tag;
+    private volatile boolean cancelled;
+
+    ConsumerImpl(final Channel channel, final int shard) {
+      this.channel = channel;
+      this.shard = shard;
+      this.queue = QueueImpl.this.queues().get(shard);
+    }
+
+    void consume() throws IOException {
+      final @Nullable StreamOffset stream = QueueImpl.this.stream();
+      final @Nullable StreamCheckpoint checkpoint = QueueImpl.this.checkpoint;
+      final @Nullable Map<String, Object> arguments;
+      if(stream != null && checkpoint != null) {
+        arguments = Collections.singletonMap(STREAM_OFFSET, checkpoint.resume(stream).argument());
+      } else {
+        arguments = null;
+      }
+      // only a queue with a single consumer (per shard) can be consumed from exclusively
+      final boolean exclusive = stream == null && Math.max(QueueImpl.this.minimumConsumers(), QueueImpl.this.maximumConsumers()) <= QueueImpl.this.shards();
+      final int prefetch = stream != null && QueueImpl.this.prefetch() <= 0 ? STREAM_PREFETCH : QueueImpl.this.prefetch();
+      // the prefetch count applies to consumers started after it is set, so it is always set, even when unlimited,
+      // in case the channel is shared with a queue consumed with a different prefetch count
+      // resolved on every consume, as a server-named queue has a new name once it has been recovered
+      this.queue = QueueImpl.this.queues().get(this.shard);
+      synchronized(this.channel) {
+        this.channel.basicQos(Math.max(prefetch, 0));
+        this.tag = this.channel.basicConsume(this.queue, false, "", false, exclusive, arguments, this);
+      }
+      LOGGER.info("Starting consume on '{}' with tag '{}'", this.queue, this.tag);
+    }
+
+    /**
+     * Cancels this consumer, closing its channel once every outstanding delivery has been acknowledged.
+     *
+     * @throws IOException if an exception is encountered while cancelling
+     */
+    void cancel() throws IOException {
+      this.cancelled = true;
+      if(this.tag != null && this.channel.isOpen() && QueueImpl.this.bunny.active()) {
+        LOGGER.info("Cancelling consume on '{}' with tag '{}'", this.queue, this.tag);
+        this.channel.basicCancel(this.tag);
+      }
+      if(this.outstanding.get() == 0) {
+        this.close();
+      }
+    }
+
+    private void settled() {
+      if(this.outstanding.decrementAndGet() == 0 && this.cancelled) {
+        this.close();
+      }
+    }
+
+    private void close() {
+      if(this.closed.compareAndSet(false, true)) {
+        QueueImpl.this.close(this.channel);
+      }
+    }
+
     @Override
     public void handleConsumeOk(final String consumerTag) {
     }
@@ -210,34 +1054,309 @@ abstract class QueueImpl implements Connectable, Queue {
 
     @Override
     public void handleDelivery(final String consumerTag, final Envelope envelope, final AMQP.BasicProperties properties, final byte[] body) throws IOException {
-      QueueImpl.this.bunny.channel().basicAck(envelope.getDeliveryTag(), false);
+      final long received = System.nanoTime();
+      this.outstanding.incrementAndGet();
+      final long offset = streamOffset(properties);
+      final @Nullable StreamCheckpoint checkpoint = QueueImpl.this.checkpoint;
+      if(checkpoint != null && offset >= 0) {
+        checkpoint.received(offset);
+      }
+      final @Nullable AdaptivePrefetch prefetch = QueueImpl.this.prefetch;
+      if(prefetch != null) {
+        prefetch.received();
+      }
+      final @Nullable PriorityDispatcher dispatcher = QueueImpl.this.dispatcher;
+      if(dispatcher != null) {
+        try {
+          dispatcher.submit(properties.getPriority(), () -> this.dispatch(envelope, properties, body, received, offset));
+          return;
+        } catch(final InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      this.dispatch(envelope, properties, body, received, offset);
+    }
 
+    private void dispatch(final Envelope envelope, final AMQP.BasicProperties properties, final byte[] body, final long received, final long offset) {
+      final @Nullable AdaptivePrefetch prefetch = QueueImpl.this.prefetch;
+      final @Nullable ConsumerScaler scaler = QueueImpl.this.scaler;
+      final @Nullable StreamCheckpoint checkpoint = QueueImpl.this.checkpoint;
+      final long started = System.nanoTime();
+      final boolean coalesced = Coalescer.TYPE.equals(properties.getType());
+      final Acknowledgement acknowledgement = new Acknowledgement(this.channel, envelope.getDeliveryTag(), acknowledged -> {
+        if(prefetch != null) {
+          prefetch.completed(received, started);
+        }
+        if(checkpoint != null && offset >= 0) {
+          checkpoint.processed(offset);
+        }
+        // the elements of a coalesced delivery are remembered as they are acknowledged
+        if(acknowledged && !coalesced) {
+          this.seen(properties);
+        }
+        this.settled();
+      });
       try {
-        this.delivery(properties, body);
+        if(coalesced) {
+          // every element is settled on its own, so rejecting one leaves the others alone
+          Coalescer.unpack(properties, body, (elementProperties, element) -> {
+            final Acknowledgement elementAcknowledgement = acknowledgement.element(requeue -> this.republish(envelope, elementProperties, element, requeue), acknowledged -> {
+              if(acknowledged) {
+                this.seen(elementProperties);
+              }
+            });
+            try {
+              this.deliverSafely(envelope, elementProperties, element, received, elementAcknowledgement);
+            } finally {
+              elementAcknowledgement.release();
+            }
+          });
+        } else {
+          this.deliverSafely(envelope, properties, body, received, acknowledgement);
+        }
+      } catch(final IOException e) {
+        LOGGER.error(String.format("Exception unpacking envelope: %s", describe(properties)), e);
+      } finally {
+        if(scaler != null) {
+          scaler.busy(System.nanoTime() - started);
+        }
+        acknowledgement.release();
+      }
+    }
+
+    private void deliverSafely(final Envelope envelope, final AMQP.BasicProperties properties, final byte[] body, final long received, final Acknowledgement acknowledgement) {
+      try {
+        this.delivery(envelope, properties, body, received, acknowledgement);
       } catch(final Throwable t) {
         LOGGER.error(String.format("Exception delivering message: %s", describe(properties)), t);
       }
     }
 
-    private void delivery(final AMQP.BasicProperties properties, final byte[] body) {
-      final TypeToken<? extends Message> type = QueueImpl.this.mr.type(properties.getType());
-      if(type == null) {
+    private void delivery(final Envelope envelope, final AMQP.BasicProperties properties, final byte[] body, final long received, final Acknowledgement acknowledgement) throws IOException {
+      if(this.duplicate(properties)) {
+        return;
+      }
+
+      final @Nullable MessageMeta<? extends Message> meta = QueueImpl.this.mr.meta(properties.getType());
+      if(meta == null) {
         return;
       }
 
-      final Collection<SubscriptionImpl<? extends Message>> subscriptions = QueueImpl.this.consumers.get(type);
-      if(subscriptions.isEmpty()) {
+      final Expiry expiry = QueueImpl.this.expiry();
+      if(expiry != Expiry.DELIVER && expired(properties)) {
+        QueueImpl.this.statistics.computeIfAbsent(meta.name(), name -> new TypeStatistics()).expired.increment();
+        LOGGER.debug("Dropping expired message '{}' received from '{}'", meta.name(), this.queue);
+        if(expiry == Expiry.DEAD_LETTER) {
+          acknowledgement.reject(false);
+        }
         return;
       }
 
-      final String json = new String(body, StandardCharsets.UTF_8);
-      final Message message = QueueImpl.this.gson.fromJson(json, type.getType());
-      final Iterator<SubscriptionImpl<? extends Message>> it = subscriptions.iterator();
-      while(it.hasNext()) {
-        final SubscriptionImpl<? extends Message> subscription = it.next();
-        subscription.consumer.accept(message, it::remove, properties);
+      final TypeToken<? extends Message> type = TypeToken.of(meta.type());
+      final Set<SubscriptionImpl<? extends Message>> subscriptions = QueueImpl.this.consumers.getOrDefault(type, Collections.emptySet());
+      final @Nullable TopicTrie<SubscriptionImpl<? extends Message>> routes = QueueImpl.this.routes.get(type);
+      final Set<SubscriptionImpl<? extends Message>> routed = routes != null ? routes.match(routingKey(envelope, properties)) : Collections.emptySet();
+      final List<SubscriptionImpl<? extends Message>> matched = new ArrayList<>(subscriptions.size() + routed.size());
+      for(final SubscriptionImpl<? extends Message> subscription : subscriptions) {
+        if(subscription.test(properties)) {
+          matched.add(subscription);
+        }
+      }
+      for(final SubscriptionImpl<? extends Message> subscription : routed) {
+        if(subscription.test(properties)) {
+          matched.add(subscription);
+        }
+      }
+      // nothing wants this message - don't bother decoding it
+      if(matched.isEmpty()) {
+        return;
+      }
+
+      final @Nullable ByteBuffer payload = this.payload(properties, body);
+      if(payload == null) {
+        return;
+      }
+
+      final TypeStatistics statistics = QueueImpl.this.statistics.computeIfAbsent(meta.name(), name -> new TypeStatistics());
+      final @Nullable Map<String, Object> headers = properties.getHeaders();
+      final @Nullable Object published = headers != null ? headers.get(Headers.PUBLISHED) : null;
+      if(published instanceof Number) {
+        statistics.transit.record(Tracing.micros(received) - ((Number) published).longValue());
+      }
+      final long decoding = System.nanoTime();
+      statistics.queueing.record(received, decoding);
+      final Message message = this.decode(meta, payload);
+      final long handling = System.nanoTime();
+      statistics.decoding.record(decoding, handling);
+      // subscriptions which finish with the message later retain this, so handling is recorded once they all have
+      final Acknowledgement handled = acknowledgement.hold(acknowledged -> statistics.handling.record(handling, System.nanoTime()));
+      final @Nullable String trace = Tracing.enter(headers != null ? headers.get(Headers.TRACE_PARENT) : null);
+      try {
+        final @Nullable Watchdog watchdog = QueueImpl.this.watchdog;
+        for(final SubscriptionImpl<? extends Message> subscription : matched) {
+          final Watchdog.@Nullable Invocation invocation = watchdog != null ? watchdog.enter(subscription, properties, handled) : null;
+          try {
+            subscription.accept(message, properties, handled);
+          } finally {
+            if(invocation != null) {
+              watchdog.exit(invocation);
+            }
+          }
+        }
+      } finally {
+        Tracing.exit(trace);
+        handled.release();
+      }
+    }
+
+    /**
+     * Gets the payload of a message, reading it from the blob store if it was sent by reference.
+     *
+     * @param properties the properties
+     * @param body the body
+     * @return the payload, or {@code null} if it could not be resolved
+     * @throws IOException if an exception is encountered while reading from the blob store
+     */
+    private @Nullable ByteBuffer payload(final AMQP.BasicProperties properties, final byte[] body) throws IOException {
+      final @Nullable Object reference = properties.getHeaders() != null ? properties.getHeaders().get(Headers.CLAIM_CHECK) : null;
+      if(reference == null) {
+        return ByteBuffer.wrap(body);
+      }
+      final @Nullable BlobStore store = QueueImpl.this.blobStore();
+      if(store == null) {
+        LOGGER.warn("Dropping message '{}' on '{}': payload was sent by reference, but no blob store is available", properties.getMessageId(), QueueImpl.this);
+        return null;
+      }
+      return store.get(reference.toString());
+    }
+
+    private Message decode(final MessageMeta<? extends Message> meta, final ByteBuffer payload) throws IOException {
+      final JsonReader reader = QueueImpl.this.gson.newJsonReader(new InputStreamReader(new ByteBufferInputStream(payload), StandardCharsets.UTF_8));
+      reader.setLenient(true);
+      return meta.adapter().read(reader);
+    }
+
+    /**
+     * Tests if a message with the same id has already been acknowledged.
+     *
+     * @param properties the properties
+     * @return {@code true} if the message is a duplicate, {@code false} otherwise
+     */
+    private boolean duplicate(final AMQP.BasicProperties properties) {
+      final @Nullable Cache<String, Boolean> seen = QueueImpl.this.seen;
+      final @Nullable String id = properties.getMessageId();
+      if(seen == null || id == null) {
+        return false;
+      }
+      if(seen.getIfPresent(id) != null) {
+        LOGGER.debug("Dropping duplicate message '{}' on '{}'", id, QueueImpl.this);
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * Remembers the id of an acknowledged message, so later deliveries of it are dropped as duplicates.
+     *
+     * @param properties the properties
+     */
+    private void seen(final AMQP.BasicProperties properties) {
+      final @Nullable Cache<String, Boolean> seen = QueueImpl.this.seen;
+      final @Nullable String id = properties.getMessageId();
+      if(seen != null && id != null) {
+        seen.put(id, Boolean.TRUE);
       }
     }
+
+    /**
+     * Publishes a rejected element of a coalesced delivery on its own, as the broker can only reject the whole delivery.
+     *
+     * <p>A requeued element is published back to the queue it was received from, with its routing key kept in a header.
+     * Otherwise it is dead lettered in the same way the broker would, or dropped if this queue has no dead letter exchange.</p>
+     *
+     * @param envelope the envelope of the delivery
+     * @param properties the element properties
+     * @param body the element body
+     * @param requeue if the element should be requeued
+     * @throws IOException if an exception is encountered while publishing
+     */
+    private void republish(final Envelope envelope, final AMQP.BasicProperties properties, final byte[] body, final boolean requeue) throws IOException {
+      final Channel channel = QueueImpl.this.bunny.channel();
+      if(requeue) {
+        final Map<String, Object> headers = properties.getHeaders() != null ? new HashMap<>(properties.getHeaders()) : new HashMap<>();
+        headers.put(Headers.ROUTING_KEY, routingKey(envelope, properties));
+        channel.basicPublish("", this.queue, properties.builder().headers(headers).build(), body);
+        return;
+      }
+      final @Nullable Map<String, Object> arguments = QueueImpl.this.arguments;
+      final @Nullable Object exchange = arguments != null ? arguments.get(DEAD_LETTER_EXCHANGE) : null;
+      if(exchange == null) {
+        LOGGER.debug("Dropping rejected message '{}' on '{}': no dead letter exchange", properties.getMessageId(), QueueImpl.this);
+        return;
+      }
+      final @Nullable Object routingKey = arguments.get(DEAD_LETTER_ROUTING_KEY);
+      channel.basicPublish(exchange.toString(), routingKey != null ? routingKey.toString() : routingKey(envelope, properties), properties, body);
+    }
+  }
+
+  /**
+   * Gets the routing key a message was published with, which differs from that of its delivery if it was requeued on its own.
+   *
+   * @param envelope the envelope of the delivery
+   * @param properties the message properties
+   * @return the routing key
+   */
+  private static String routingKey(final Envelope envelope, final AMQP.BasicProperties properties) {
+    final @Nullable Map<String, Object> headers = properties.getHeaders();
+    final @Nullable Object routingKey = headers != null ? headers.get(Headers.ROUTING_KEY) : null;
+    return routingKey != null ? routingKey.toString() : envelope.getRoutingKey();
+  }
+
+  /**
+   * Gets the offset of a message delivered from a stream queue.
+   *
+   * @param properties the message properties
+   * @return the offset, or {@code -1} if the message was not delivered from a stream queue
+   */
+  private static long streamOffset(final AMQP.BasicProperties properties) {
+    final @Nullable Map<String, Object> headers = properties.getHeaders();
+    final @Nullable Object offset = headers != null ? headers.get(STREAM_OFFSET) : null;
+    return offset instanceof Number ? ((Number) offset).longValue() : -1;
+  }
+
+  /**
+   * Tests if a message has been received after its deadline.
+   *
+   * @param properties the message properties
+   * @return {@code true} if the message has expired, {@code false} otherwise
+   */
+  private static boolean expired(final AMQP.BasicProperties properties) {
+    final @Nullable Map<String, Object> headers = properties.getHeaders();
+    final @Nullable Object deadline = headers != null ? headers.get(Headers.DEADLINE) : null;
+    final long now = System.currentTimeMillis();
+    if(deadline instanceof Number) {
+      return now > ((Number) deadline).longValue();
+    }
+    final @Nullable String expiration = properties.getExpiration();
+    if(expiration == null) {
+      return false;
+    }
+    // prefer the precise publish time over the timestamp, which only has a resolution of seconds
+    final @Nullable Object published = headers != null ? headers.get(Headers.PUBLISHED) : null;
+    final long publishedAt;
+    if(published instanceof Number) {
+      publishedAt = TimeUnit.MICROSECONDS.toMillis(((Number) published).longValue());
+    } else if(properties.getTimestamp() != null) {
+      // the timestamp is truncated to seconds - give the message the benefit of the doubt
+      publishedAt = properties.getTimestamp().getTime() + TimeUnit.SECONDS.toMillis(1) - 1;
+    } else {
+      return false;
+    }
+    try {
+      return now > publishedAt + Long.parseLong(expiration);
+    } catch(final NumberFormatException e) {
+      return false;
+    }
   }
 
   private static String describe(final AMQP.BasicProperties properties) {
@@ -246,17 +1365,424 @@ abstract class QueueImpl implements Connectable, Queue {
     return sb.toString();
   }
 
-  private class SubscriptionImpl<M extends Message> implements Subscription {
-    // raw
-    final TargetedMessageConsumer consumer;
+  /**
+   * The latencies of a message type.
+   */
+  private static final class TypeStatistics {
+    final LatencyHistogram transit = new LatencyHistogram();
+    final LatencyHistogram queueing = new LatencyHistogram();
+    final LatencyHistogram decoding = new LatencyHistogram();
+    final LatencyHistogram handling = new LatencyHistogram();
+    final LongAdder expired = new LongAdder();
+
+    QueueStatistics.Type snapshot() {
+      return new QueueStatistics.Type(this.transit.snapshot(), this.queueing.snapshot(), this.decoding.snapshot(), this.handling.snapshot(), this.expired.sum());
+    }
+  }
+
+  private abstract class SubscriptionImpl<M extends Message> implements Subscription {
+    final TypeToken<M> type;
+    /**
+     * The routing key pattern messages must match, or {@code null} to accept all messages.
+     */
+    final @Nullable String pattern;
+    /**
+     * The predicate message properties must match, or {@code null} to accept all messages.
+     */
+    private final @Nullable Predicate<AMQP.BasicProperties> filter;
+
+    SubscriptionImpl(final TypeToken<M> type, final @Nullable String pattern, final @Nullable Predicate<AMQP.BasicProperties> filter) {
+      this.type = type;
+      this.pattern = pattern;
+      this.filter = filter;
+    }
+
+    /**
+     * Tests if this subscription wants a message, before it is decoded.
+     *
+     * @param properties the properties
+     * @return {@code true} if the message should be accepted
+     */
+    boolean test(final AMQP.BasicProperties properties) {
+      return this.filter == null || this.filter.test(properties);
+    }
+
+    /**
+     * Accepts a message.
+     *
+     * <p>Implementations that finish with the message after returning must {@link Acknowledgement#retain() retain} the acknowledgement,
+     * and should handle the message in the {@link Tracing#current() trace context} it was accepted in.</p>
+     *
+     * @param message the message
+     * @param properties the properties
+     * @param acknowledgement the acknowledgement
+     */
+    abstract void accept(final Message message, final AMQP.BasicProperties properties, final Acknowledgement acknowledgement);
+
+    @Override
+    public void cancel() {
+      if(this.pattern != null) {
+        final @Nullable TopicTrie<SubscriptionImpl<? extends Message>> routes = QueueImpl.this.routes.get(this.type);
+        if(routes != null) {
+          routes.remove(this.pattern, this);
+        }
+      } else {
+        final @Nullable Set<SubscriptionImpl<? extends Message>> subscriptions = QueueImpl.this.consumers.get(this.type);
+        if(subscriptions != null) {
+          subscriptions.remove(this);
+        }
+      }
+    }
+  }
+
+  private final class TargetedSubscription<M extends Message> extends SubscriptionImpl<M> {
+    private final TargetedMessageConsumer<M> consumer;
+
+    TargetedSubscription(final TypeToken<M> type, final @Nullable String pattern, final @Nullable Predicate<AMQP.BasicProperties> filter, final TargetedMessageConsumer<M> consumer) {
+      super(type, pattern, filter);
+      this.consumer = consumer;
+    }
+
+    @Override
+    void accept(final Message message, final AMQP.BasicProperties properties, final Acknowledgement acknowledgement) {
+      this.consumer.accept((M) message, this, properties);
+    }
+  }
+
+  private final class BatchSubscription<M extends Message> extends SubscriptionImpl<M> {
+    private final int size;
+    private final long window;
+    private final BatchMessageConsumer<M> consumer;
+    private List<Delivery<M>> deliveries;
+    private List<Acknowledgement> acknowledgements;
+    /**
+     * The trace context shared by every pending message, or {@code null} if there is none.
+     */
+    private @Nullable String trace;
+    private @Nullable ScheduledFuture<?> flush;
+
+    BatchSubscription(final TypeToken<M> type, final @Nullable String pattern, final @Nullable Predicate<AMQP.BasicProperties> filter, final int size, final long window, final BatchMessageConsumer<M> consumer) {
+      super(type, pattern, filter);
+      this.size = size;
+      this.window = window;
+      this.consumer = consumer;
+      this.deliveries = new ArrayList<>(size);
+      this.acknowledgements = new ArrayList<>(size);
+    }
+
+    @Override
+    void accept(final Message message, final AMQP.BasicProperties properties, final Acknowledgement acknowledgement) {
+      final boolean full;
+      synchronized(this) {
+        acknowledgement.retain();
+        final @Nullable String trace = Tracing.current();
+        this.trace = this.deliveries.isEmpty() || Objects.equals(this.trace, trace) ? trace : null;
+        this.deliveries.add(new Delivery<>((M) message, properties));
+        this.acknowledgements.add(acknowledgement);
+        full = this.deliveries.size() >= this.size;
+        if(!full && this.flush == null) {
+          this.flush = QueueImpl.this.bunny.scheduler().schedule(() -> QueueImpl.this.bunny.executor().execute(this::flush), this.window, TimeUnit.MILLISECONDS);
+        }
+      }
+      if(full) {
+        this.flush();
+      }
+    }
+
+    /**
+     * Delivers the pending messages to the consumer, acknowledging them afterwards, or rejecting them if the consumer throws.
+     */
+    private void flush() {
+      final List<Delivery<M>> deliveries;
+      final List<Acknowledgement> acknowledgements;
+      final @Nullable String trace;
+      synchronized(this) {
+        if(this.flush != null) {
+          this.flush.cancel(false);
+          this.flush = null;
+        }
+        if(this.deliveries.isEmpty()) {
+          return;
+        }
+        deliveries = this.deliveries;
+        acknowledgements = this.acknowledgements;
+        trace = this.trace;
+        this.deliveries = new ArrayList<>(this.size);
+        this.acknowledgements = new ArrayList<>(this.size);
+        this.trace = null;
+      }
+
+      // a batch of messages from different traces belongs to none of them
+      final @Nullable String previous = Tracing.enter(trace);
+      try {
+        synchronized(this.consumer) {
+          this.consumer.accept(Collections.unmodifiableList(deliveries), this);
+        }
+      } catch(final Throwable t) {
+        LOGGER.error(String.format("Exception delivering batch of %d messages", deliveries.size()), t);
+        // it is unknown which messages were handled, so the whole batch is dead-lettered, as a failed message would be
+        for(final Acknowledgement acknowledgement : acknowledgements) {
+          acknowledgement.reject(false);
+        }
+      } finally {
+        Tracing.exit(previous);
+        acknowledgements.forEach(Acknowledgement::release);
+      }
+    }
+
+    @Override
+    public void cancel() {
+      super.cancel();
+      this.flush();
+    }
+  }
+
+  private final class AsyncSubscription<M extends Message> extends SubscriptionImpl<M> {
+    private final AsyncMessageConsumer<M> consumer;
+    /**
+     * The maximum number of messages being consumed at once.
+     */
+    final int concurrency;
+    /**
+     * The permits for messages being consumed.
+     */
+    private final Semaphore permits;
+
+    AsyncSubscription(final TypeToken<M> type, final @Nullable String pattern, final @Nullable Predicate<AMQP.BasicProperties> filter, final int concurrency, final AsyncMessageConsumer<M> consumer) {
+      super(type, pattern, filter);
+      this.consumer = consumer;
+      this.concurrency = concurrency;
+      this.permits = new Semaphore(concurrency);
+    }
+
+    @Override
+    public void cancel() {
+      super.cancel();
+      if(QueueImpl.this.asyncs.remove(this)) {
+        QueueImpl.this.bunny.executor().execute(QueueImpl.this::credit);
+      }
+    }
+
+    @Override
+    void accept(final Message message, final AMQP.BasicProperties properties, final Acknowledgement acknowledgement) {
+      try {
+        // the prefetch count normally keeps this from waiting, but it does not hold while it is being changed, or
+        // for other subscriptions sharing the channel - the message is requeued rather than blocking the delivery
+        // thread for longer
+        if(!this.permits.tryAcquire(ASYNC_PERMIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+          LOGGER.debug("Requeueing message '{}' on '{}': {} messages are already being consumed", properties.getMessageId(), QueueImpl.this, this.concurrency);
+          acknowledgement.reject(true);
+          return;
+        }
+      } catch(final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        acknowledgement.reject(true);
+        return;
+      }
+      acknowledgement.retain();
+      final CompletionStage<?> stage;
+      try {
+        stage = this.consumer.accept((M) message, this, properties);
+      } catch(final Throwable t) {
+        this.completed(properties, acknowledgement, t);
+        return;
+      }
+      stage.whenComplete((result, failure) -> this.completed(properties, acknowledgement, failure));
+    }
+
+    private void completed(final AMQP.BasicProperties properties, final Acknowledgement acknowledgement, final @Nullable Throwable failure) {
+      this.permits.release();
+      if(failure != null) {
+        LOGGER.error(String.format("Exception consuming message: %s", describe(properties)), failure);
+        acknowledgement.reject(false);
+      } else {
+        acknowledgement.release();
+      }
+    }
+  }
+
+  private final class ConflatingSubscription<M extends Message> extends SubscriptionImpl<M> {
+    private final Function<? super Delivery<M>, ?> key;
+    private final TargetedMessageConsumer<M> consumer;
+    /**
+     * The latest delivery waiting to be consumed for each key.
+     */
+    private final Map<Object, Pending<M>> pending = new ConcurrentHashMap<>();
+    /**
+     * The keys with a delivery waiting, in the order they started waiting.
+     */
+    private final Deque<Object> keys = new ConcurrentLinkedDeque<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
 
-    private SubscriptionImpl(final TargetedMessageConsumer<M> consumer) {
+    ConflatingSubscription(final TypeToken<M> type, final @Nullable String pattern, final @Nullable Predicate<AMQP.BasicProperties> filter, final Function<? super Delivery<M>, ?> key, final TargetedMessageConsumer<M> consumer) {
+      super(type, pattern, filter);
+      this.key = key;
       this.consumer = consumer;
     }
 
+    @Override
+    void accept(final Message message, final AMQP.BasicProperties properties, final Acknowledgement acknowledgement) {
+      final Delivery<M> delivery = new Delivery<>((M) message, properties);
+      final @Nullable Object key = this.key.apply(delivery);
+      // a null key is never equal to any other
+      final Object slot = key != null ? key : new Object();
+      acknowledgement.retain();
+      final @Nullable Pending<M> replaced = this.pending.put(slot, new Pending<>(delivery, acknowledgement, Tracing.current()));
+      if(replaced != null) {
+        // the replaced delivery will never be consumed
+        replaced.acknowledgement.release();
+      } else {
+        this.keys.add(slot);
+      }
+      this.drain();
+    }
+
+    /**
+     * Starts consuming the waiting deliveries, unless they are already being consumed.
+     */
+    private void drain() {
+      if(!this.keys.isEmpty() && this.draining.compareAndSet(false, true)) {
+        QueueImpl.this.bunny.executor().execute(this::consume);
+      }
+    }
+
+    private void consume() {
+      try {
+        @Nullable Object key;
+        while((key = this.keys.poll()) != null) {
+          final @Nullable Pending<M> pending = this.pending.remove(key);
+          if(pending == null) {
+            continue;
+          }
+          final @Nullable String previous = Tracing.enter(pending.trace);
+          try {
+            this.consumer.accept(pending.delivery.message(), this, pending.delivery.properties());
+          } catch(final Throwable t) {
+            LOGGER.error(String.format("Exception delivering message: %s", describe(pending.delivery.properties())), t);
+          } finally {
+            Tracing.exit(previous);
+            pending.acknowledgement.release();
+          }
+        }
+      } finally {
+        this.draining.set(false);
+      }
+      // a key may have started waiting after the last poll
+      this.drain();
+    }
+  }
+
+  private final class PublisherSubscription<M extends Message> extends SubscriptionImpl<M> implements org.reactivestreams.Subscription {
+    private final Subscriber<? super Delivery<M>> subscriber;
+    /**
+     * The deliveries waiting for demand.
+     */
+    private final Deque<Pending<M>> waiting = new ConcurrentLinkedDeque<>();
+    /**
+     * The number of deliveries requested but not yet delivered.
+     */
+    final AtomicLong requested = new AtomicLong();
+    /**
+     * The number of times delivering has been asked for while it was already in progress.
+     */
+    private final AtomicInteger missed = new AtomicInteger();
+    volatile boolean cancelled;
+
+    PublisherSubscription(final TypeToken<M> type, final Subscriber<? super Delivery<M>> subscriber) {
+      super(type, null, null);
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    void accept(final Message message, final AMQP.BasicProperties properties, final Acknowledgement acknowledgement) {
+      acknowledgement.retain();
+      this.waiting.addLast(new Pending<>(new Delivery<>((M) message, properties), acknowledgement, Tracing.current()));
+      this.deliver();
+    }
+
+    @Override
+    public void request(final long n) {
+      if(n <= 0) {
+        this.cancel();
+        this.subscriber.onError(new IllegalArgumentException("demand must be positive, was " + n));
+        return;
+      }
+      final long requested = this.requested.getAndAccumulate(n, (current, added) -> {
+        final long sum = current + added;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+      });
+      if(requested == 0) {
+        QueueImpl.this.bunny.executor().execute(QueueImpl.this::credit);
+      }
+      this.deliver();
+    }
+
+    /**
+     * Delivers waiting deliveries while there is demand for them.
+     */
+    private void deliver() {
+      if(this.missed.getAndIncrement() != 0) {
+        return;
+      }
+      int missed = 1;
+      do {
+        while(!this.cancelled && this.requested.get() > 0) {
+          final @Nullable Pending<M> pending = this.waiting.pollFirst();
+          if(pending == null) {
+            break;
+          }
+          this.requested.getAndUpdate(requested -> requested == Long.MAX_VALUE ? requested : requested - 1);
+          final @Nullable String previous = Tracing.enter(pending.trace);
+          try {
+            this.subscriber.onNext(pending.delivery);
+          } catch(final Throwable t) {
+            LOGGER.error(String.format("Exception delivering message: %s", describe(pending.delivery.properties())), t);
+          } finally {
+            Tracing.exit(previous);
+            pending.acknowledgement.release();
+          }
+        }
+        if(this.cancelled) {
+          this.discard();
+        }
+        missed = this.missed.addAndGet(-missed);
+      } while(missed != 0);
+      if(this.requested.get() == 0) {
+        // out of demand - stop the broker sending more
+        QueueImpl.this.bunny.executor().execute(QueueImpl.this::credit);
+      }
+    }
+
+    private void discard() {
+      @Nullable Pending<M> pending;
+      while((pending = this.waiting.pollFirst()) != null) {
+        pending.acknowledgement.release();
+      }
+    }
+
     @Override
     public void cancel() {
-      QueueImpl.this.consumers.values().remove(this);
+      this.cancelled = true;
+      super.cancel();
+      if(QueueImpl.this.publishers.remove(this)) {
+        QueueImpl.this.bunny.executor().execute(QueueImpl.this::credit);
+      }
+      this.deliver();
+    }
+  }
+
+  private static final class Pending<M extends Message> {
+    final Delivery<M> delivery;
+    final Acknowledgement acknowledgement;
+    /**
+     * The trace context the delivery was accepted in, or {@code null} if there was none.
+     */
+    final @Nullable String trace;
+
+    Pending(final Delivery<M> delivery, final Acknowledgement acknowledgement, final @Nullable String trace) {
+      this.delivery = delivery;
+      this.acknowledgement = acknowledgement;
+      this.trace = trace;
     }
   }
 }
@@ -0,0 +1,246 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.google.common.base.MoreObjects;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A snapshot of the statistics of a queue.
+ *
+ * @see Queue#statistics()
+ */
+public final class QueueStatistics {
+  private final Map<String, Type> types;
+  private final int stalled;
+  private final long stalls;
+
+  QueueStatistics(final Map<String, Type> types, final int stalled, final long stalls) {
+    this.types = Collections.unmodifiableMap(types);
+    this.stalled = stalled;
+    this.stalls = stalls;
+  }
+
+  /**
+   * Gets the statistics of each message type received, by message type name.
+   *
+   * @return the statistics of each message type
+   */
+  public @NonNull Map<String, Type> types() {
+    return this.types;
+  }
+
+  /**
+   * Gets the number of subscription handlers which are currently stalled.
+   *
+   * @return the number of stalled handlers
+   * @see Queue.Impl#stallThreshold()
+   */
+  public int stalled() {
+    return this.stalled;
+  }
+
+  /**
+   * Gets the total number of subscription handlers which have stalled.
+   *
+   * @return the total number of stalled handlers
+   * @see Queue.Impl#stallThreshold()
+   */
+  public long stalls() {
+    return this.stalls;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+      .add("types", this.types)
+      .add("stalled", this.stalled)
+      .add("stalls", this.stalls)
+      .toString();
+  }
+
+  /**
+   * The statistics of a message type.
+   */
+  public static final class Type {
+    private final Latency transit;
+    private final Latency queueing;
+    private final Latency decoding;
+    private final Latency handling;
+    private final long expired;
+
+    Type(final Latency transit, final Latency queueing, final Latency decoding, final Latency handling, final long expired) {
+      this.transit = transit;
+      this.queueing = queueing;
+      this.decoding = decoding;
+      this.handling = handling;
+      this.expired = expired;
+    }
+
+    /**
+     * Gets the time from publishing until a message was received.
+     *
+     * <p>This is only measured for messages published to an exchange which timestamps messages.</p>
+     *
+     * @return the time from publishing until a message was received
+     * @see Exchange.Impl#timestamped()
+     */
+    public @NonNull Latency transit() {
+      return this.transit;
+    }
+
+    /**
+     * Gets the time from receiving a message until it was decoded.
+     *
+     * @return the time from receiving a message until it was decoded
+     */
+    public @NonNull Latency queueing() {
+      return this.queueing;
+    }
+
+    /**
+     * Gets the time spent decoding a message.
+     *
+     * @return the time spent decoding a message
+     */
+    public @NonNull Latency decoding() {
+      return this.decoding;
+    }
+
+    /**
+     * Gets the time spent in subscription handlers.
+     *
+     * <p>This runs from when a message is handed to its subscriptions until every one of them has finished with it,
+     * including asynchronous, batched, conflated and publisher subscriptions which finish after returning.</p>
+     *
+     * @return the time spent in subscription handlers
+     */
+    public @NonNull Latency handling() {
+      return this.handling;
+    }
+
+    /**
+     * Gets the number of messages dropped without being decoded because they were received after their deadline.
+     *
+     * @return the number of expired messages
+     * @see Queue.Impl#expiry()
+     */
+    public long expired() {
+      return this.expired;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+        .add("transit", this.transit)
+        .add("queueing", this.queueing)
+        .add("decoding", this.decoding)
+        .add("handling", this.handling)
+        .add("expired", this.expired)
+        .toString();
+    }
+  }
+
+  /**
+   * A distribution of latencies, in microseconds.
+   */
+  public static final class Latency {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Latency(final long[] counts, final long count, final long sum, final long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    /**
+     * Gets the number of latencies recorded.
+     *
+     * @return the number of latencies recorded
+     */
+    public long count() {
+      return this.count;
+    }
+
+    /**
+     * Gets the mean latency, in microseconds.
+     *
+     * @return the mean latency, in microseconds
+     */
+    public double mean() {
+      return this.count > 0 ? this.sum / (double) this.count : 0;
+    }
+
+    /**
+     * Gets the maximum latency, in microseconds.
+     *
+     * @return the maximum latency, in microseconds
+     */
+    public long max() {
+      return this.max;
+    }
+
+    /**
+     * Gets the latency at or below which a percentage of latencies fall, in microseconds.
+     *
+     * @param percentile the percentage, between {@code 0} and {@code 100}
+     * @return the latency, in microseconds
+     */
+    public long percentile(final double percentile) {
+      checkArgument(percentile >= 0 && percentile <= 100, "percentile must be between 0 and 100");
+      if(this.count == 0) {
+        return 0;
+      }
+      final long rank = Math.max(1, (long) Math.ceil(this.count * percentile / 100));
+      long seen = 0;
+      for(int i = 0; i < this.counts.length; i++) {
+        seen += this.counts[i];
+        if(seen >= rank) {
+          return Math.min(LatencyHistogram.value(i), this.max);
+        }
+      }
+      return this.max;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+        .add("count", this.count)
+        .add("mean", this.mean())
+        .add("p50", this.percentile(50))
+        .add("p99", this.percentile(99))
+        .add("max", this.max)
+        .toString();
+    }
+  }
+}
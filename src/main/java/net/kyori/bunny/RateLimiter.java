@@ -0,0 +1,248 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.google.common.base.Ticker;
+import com.rabbitmq.client.AMQP;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Limits the rate messages are published at, in messages and bytes per second.
+ *
+ * <p>Each limit is a token bucket, implemented without locks as a generic cell rate algorithm. A bucket allows
+ * bursts of up to its rate for the burst duration before the {@link Overflow overflow behaviour} applies.</p>
+ *
+ * @see Exchange.Impl#rateLimiter()
+ */
+public final class RateLimiter {
+  private final @Nullable Bucket messages;
+  private final @Nullable Bucket bytes;
+  private final @NonNull Overflow overflow;
+  private final Ticker ticker;
+
+  /**
+   * Constructs a new rate limiter allowing bursts of up to one second.
+   *
+   * @param messages the maximum number of messages per second, or {@code 0} for no limit
+   * @param bytes the maximum number of bytes per second, or {@code 0} for no limit
+   * @param overflow the behaviour when a limit is exceeded
+   */
+  public RateLimiter(final double messages, final double bytes, final @NonNull Overflow overflow) {
+    this(messages, bytes, TimeUnit.SECONDS.toMillis(1), overflow);
+  }
+
+  /**
+   * Constructs a new rate limiter.
+   *
+   * @param messages the maximum number of messages per second, or {@code 0} for no limit
+   * @param bytes the maximum number of bytes per second, or {@code 0} for no limit
+   * @param burst the duration of a burst allowed above the rate, in milliseconds
+   * @param overflow the behaviour when a limit is exceeded
+   */
+  public RateLimiter(final double messages, final double bytes, final long burst, final @NonNull Overflow overflow) {
+    this(messages, bytes, burst, overflow, Ticker.systemTicker());
+  }
+
+  /**
+   * Constructs a new rate limiter.
+   *
+   * @param messages the maximum number of messages per second, or {@code 0} for no limit
+   * @param bytes the maximum number of bytes per second, or {@code 0} for no limit
+   * @param burst the duration of a burst allowed above the rate, in milliseconds
+   * @param overflow the behaviour when a limit is exceeded
+   * @param ticker the source of time
+   */
+  RateLimiter(final double messages, final double bytes, final long burst, final @NonNull Overflow overflow, final @NonNull Ticker ticker) {
+    checkArgument(messages >= 0, "messages must be non-negative");
+    checkArgument(bytes >= 0, "bytes must be non-negative");
+    checkArgument(burst >= 0, "burst must be non-negative");
+    this.messages = messages > 0 ? new Bucket(ticker, messages, TimeUnit.MILLISECONDS.toNanos(burst)) : null;
+    this.bytes = bytes > 0 ? new Bucket(ticker, bytes, TimeUnit.MILLISECONDS.toNanos(burst)) : null;
+    this.overflow = overflow;
+    this.ticker = ticker;
+  }
+
+  /**
+   * Gets the behaviour when a limit is exceeded.
+   *
+   * @return the behaviour when a limit is exceeded
+   */
+  public @NonNull Overflow overflow() {
+    return this.overflow;
+  }
+
+  /**
+   * Acquires permission to publish a message, waiting if the overflow behaviour requires it.
+   *
+   * @param size the size of the message body, in bytes
+   * @param properties the message properties
+   * @return {@code true} if the message may be published, {@code false} if it exceeds a limit
+   */
+  boolean acquire(final int size, final AMQP.@NonNull BasicProperties properties) {
+    if(this.overflow == Overflow.WAIT || (this.overflow == Overflow.SHED && !lowestPriority(properties))) {
+      final long delay = Math.max(reserve(this.messages, 1), reserve(this.bytes, size));
+      if(delay > 0) {
+        final long deadline = this.ticker.read() + delay;
+        for(long remaining = delay; remaining > 0; remaining = deadline - this.ticker.read()) {
+          LockSupport.parkNanos(this, remaining);
+          if(Thread.interrupted()) {
+            Thread.currentThread().interrupt();
+            // the message will not be published, so the tokens it reserved are given back rather than holding back
+            // later messages
+            refund(this.messages, 1);
+            refund(this.bytes, size);
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+    if(!tryAcquire(this.messages, 1)) {
+      return false;
+    }
+    if(!tryAcquire(this.bytes, size)) {
+      // the message is rejected, so it does not count against the message limit either
+      refund(this.messages, 1);
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean lowestPriority(final AMQP.@NonNull BasicProperties properties) {
+    final @Nullable Integer priority = properties.getPriority();
+    return priority == null || priority <= 0;
+  }
+
+  private static long reserve(final @Nullable Bucket bucket, final long cost) {
+    return bucket != null ? bucket.reserve(cost) : 0;
+  }
+
+  private static boolean tryAcquire(final @Nullable Bucket bucket, final long cost) {
+    return bucket == null || bucket.tryAcquire(cost);
+  }
+
+  private static void refund(final @Nullable Bucket bucket, final long cost) {
+    if(bucket != null) {
+      bucket.refund(cost);
+    }
+  }
+
+  /**
+   * The behaviour when a limit is exceeded.
+   */
+  public enum Overflow {
+    /**
+     * Wait until the message can be published.
+     */
+    WAIT,
+    /**
+     * Reject the message by throwing a {@link PublishRejectedException}.
+     */
+    REJECT,
+    /**
+     * Silently drop messages without a priority or with the lowest priority, and wait to publish any other messages.
+     */
+    SHED;
+  }
+
+  /**
+   * A token bucket.
+   */
+  private static final class Bucket {
+    /**
+     * The time to emit a single token, in nanoseconds.
+     */
+    private final double interval;
+    /**
+     * The time the bucket may run ahead of the current time, in nanoseconds.
+     */
+    private final long tolerance;
+    private final Ticker ticker;
+    /**
+     * The theoretical arrival time of the next token, in nanoseconds.
+     */
+    private final AtomicLong arrival;
+
+    Bucket(final Ticker ticker, final double rate, final long tolerance) {
+      this.interval = TimeUnit.SECONDS.toNanos(1) / rate;
+      this.tolerance = tolerance;
+      this.ticker = ticker;
+      this.arrival = new AtomicLong(ticker.read());
+    }
+
+    /**
+     * Takes tokens, going into debt if there are not enough.
+     *
+     * @param cost the number of tokens
+     * @return the time to wait before the tokens are available, in nanoseconds
+     */
+    long reserve(final long cost) {
+      final long increment = this.increment(cost);
+      while(true) {
+        final long now = this.ticker.read();
+        final long current = this.arrival.get();
+        final long arrival = Math.max(current, now);
+        if(this.arrival.compareAndSet(current, arrival + increment)) {
+          return Math.max(0, arrival - this.tolerance - now);
+        }
+      }
+    }
+
+    /**
+     * Takes tokens if they are available.
+     *
+     * @param cost the number of tokens
+     * @return {@code true} if the tokens were taken
+     */
+    boolean tryAcquire(final long cost) {
+      final long increment = this.increment(cost);
+      while(true) {
+        final long now = this.ticker.read();
+        final long current = this.arrival.get();
+        final long arrival = Math.max(current, now);
+        if(arrival - now > this.tolerance) {
+          return false;
+        }
+        if(this.arrival.compareAndSet(current, arrival + increment)) {
+          return true;
+        }
+      }
+    }
+
+    void refund(final long cost) {
+      this.arrival.addAndGet(-this.increment(cost));
+    }
+
+    private long increment(final long cost) {
+      return (long) (cost * this.interval);
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+/**
+ * The action taken when a subscription handler stalls.
+ *
+ * @see Queue.Impl#stallPolicy()
+ */
+public enum StallPolicy {
+  /**
+   * Report the stall, including the stack of the stalled thread.
+   */
+  REPORT,
+  /**
+   * Report the stall, and reject the message so it is requeued for another consumer.
+   *
+   * <p>Only the stalled message is requeued, even if it was coalesced with others. The stalled handler keeps
+   * running, and keeps the consumer it was invoked by busy, so the requeued message is only handled sooner if
+   * another consumer of the queue - in this process, with {@link Queue.Impl#minimumConsumers() more consumers},
+   * or in another - is free to receive it. With a single consumer, the message is redelivered to the stalled
+   * consumer and waits behind the stalled handler.</p>
+   */
+  REQUEUE,
+  /**
+   * Report the stall, reject the message so it is requeued, and cancel the stalled subscription so it receives no
+   * more messages.
+   *
+   * <p>Only the stalled message is requeued, even if it was coalesced with others.</p>
+   */
+  ISOLATE;
+}
@@ -0,0 +1,168 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the offset of a stream queue up to which every message has been processed, and periodically
+ * writes it to a file so consuming can resume from it.
+ */
+final class StreamCheckpoint {
+  private static final Logger LOGGER = LoggerFactory.getLogger(StreamCheckpoint.class);
+  private final Bunny bunny;
+  private final @Nullable Path file;
+  private final long interval;
+  /**
+   * The offsets of messages which have been received but not processed.
+   */
+  private final NavigableSet<Long> inFlight = new ConcurrentSkipListSet<>();
+  /**
+   * The highest offset processed, or {@code -1}.
+   */
+  private volatile long processed = -1;
+  /**
+   * The offset last written to the file, or {@code -1}.
+   */
+  private long written = -1;
+  private @Nullable ScheduledFuture<?> task;
+
+  /**
+   * Constructs a new checkpoint.
+   *
+   * @param bunny the bunny
+   * @param file the file to write the checkpoint to, or {@code null} to only track it in memory
+   * @param interval the time between writes, in milliseconds
+   */
+  StreamCheckpoint(final Bunny bunny, final @Nullable Path file, final long interval) {
+    this.bunny = bunny;
+    this.file = file;
+    this.interval = interval;
+    this.load();
+  }
+
+  private void load() {
+    if(this.file == null || !Files.exists(this.file)) {
+      return;
+    }
+    try {
+      this.processed = this.written = Long.parseLong(new String(Files.readAllBytes(this.file), StandardCharsets.UTF_8).trim());
+      LOGGER.info("Resuming stream from checkpoint {} in '{}'", this.processed, this.file);
+    } catch(final IOException | NumberFormatException e) {
+      LOGGER.warn("Could not read stream checkpoint '{}': {}", this.file, e.getMessage());
+    }
+  }
+
+  /**
+   * Gets the offset to resume consuming from.
+   *
+   * @param initial the offset to start from when nothing has been processed
+   * @return the offset to resume from
+   */
+  StreamOffset resume(final StreamOffset initial) {
+    final long checkpoint = this.checkpoint();
+    return checkpoint >= 0 ? StreamOffset.offset(checkpoint + 1) : initial;
+  }
+
+  /**
+   * Records the receipt of a message.
+   *
+   * @param offset the offset of the message
+   */
+  void received(final long offset) {
+    this.inFlight.add(offset);
+  }
+
+  /**
+   * Records that a message has been processed.
+   *
+   * @param offset the offset of the message
+   */
+  void processed(final long offset) {
+    this.inFlight.remove(offset);
+    if(offset > this.processed) {
+      synchronized(this) {
+        this.processed = Math.max(this.processed, offset);
+      }
+    }
+  }
+
+  /**
+   * Gets the offset up to which every received message has been processed.
+   *
+   * @return the offset, or {@code -1}
+   */
+  private long checkpoint() {
+    final @Nullable Long first = this.inFlight.isEmpty() ? null : this.inFlight.first();
+    return first != null ? Math.min(first - 1, this.processed) : this.processed;
+  }
+
+  /**
+   * Starts writing the checkpoint periodically.
+   */
+  synchronized void start() {
+    if(this.file != null && this.task == null) {
+      this.task = this.bunny.scheduler().scheduleAtFixedRate(() -> this.bunny.executor().execute(this::write), this.interval, this.interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stops writing the checkpoint periodically, and writes it one last time.
+   */
+  synchronized void stop() {
+    if(this.task != null) {
+      this.task.cancel(false);
+      this.task = null;
+      this.write();
+    }
+  }
+
+  private synchronized void write() {
+    final long checkpoint = this.checkpoint();
+    if(this.file == null || checkpoint <= this.written) {
+      return;
+    }
+    try {
+      // write and move, so a crash never leaves a partially written checkpoint
+      final Path temporary = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+      Files.write(temporary, Long.toString(checkpoint).getBytes(StandardCharsets.UTF_8));
+      Files.move(temporary, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      this.written = checkpoint;
+    } catch(final IOException e) {
+      LOGGER.warn("Could not write stream checkpoint '{}': {}", this.file, e.getMessage());
+    }
+  }
+}
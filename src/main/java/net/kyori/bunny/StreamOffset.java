@@ -0,0 +1,111 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.google.common.base.MoreObjects;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.Date;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A position in a stream queue to start consuming from.
+ *
+ * @see Queue.Impl#stream()
+ */
+public final class StreamOffset {
+  private static final StreamOffset FIRST = new StreamOffset("first");
+  private static final StreamOffset LAST = new StreamOffset("last");
+  private static final StreamOffset NEXT = new StreamOffset("next");
+  private final Object value;
+
+  private StreamOffset(final Object value) {
+    this.value = value;
+  }
+
+  /**
+   * Gets the offset of the first message in the stream.
+   *
+   * @return the offset
+   */
+  public static @NonNull StreamOffset first() {
+    return FIRST;
+  }
+
+  /**
+   * Gets the offset of the last chunk of messages in the stream.
+   *
+   * @return the offset
+   */
+  public static @NonNull StreamOffset last() {
+    return LAST;
+  }
+
+  /**
+   * Gets the offset of the next message appended to the stream.
+   *
+   * @return the offset
+   */
+  public static @NonNull StreamOffset next() {
+    return NEXT;
+  }
+
+  /**
+   * Gets an absolute offset.
+   *
+   * @param offset the offset
+   * @return the offset
+   */
+  public static @NonNull StreamOffset offset(final long offset) {
+    checkArgument(offset >= 0, "offset must be non-negative");
+    return new StreamOffset(offset);
+  }
+
+  /**
+   * Gets the offset of the first message appended to the stream at or after a point in time.
+   *
+   * @param timestamp the point in time
+   * @return the offset
+   */
+  public static @NonNull StreamOffset timestamp(final @NonNull Date timestamp) {
+    return new StreamOffset(new Date(timestamp.getTime()));
+  }
+
+  /**
+   * Gets the value of the {@code x-stream-offset} consumer argument.
+   *
+   * @return the argument value
+   */
+  Object argument() {
+    return this.value;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+      .addValue(this.value)
+      .toString();
+  }
+}
@@ -24,14 +24,24 @@
 package net.kyori.bunny;
 
 import com.google.common.reflect.TypeToken;
+import net.kyori.bunny.message.AsyncMessageConsumer;
+import net.kyori.bunny.message.BatchMessageConsumer;
 import net.kyori.bunny.message.MessageConsumer;
 import net.kyori.bunny.message.TargetedMessageConsumer;
 
+import java.util.function.Function;
+import java.util.function.Predicate;
+
 /**
  * A subscription to a queue.
  *
  * @see Queue#subscribe(Class, TargetedMessageConsumer)
  * @see Queue#subscribe(TypeToken, TargetedMessageConsumer)
+ * @see Queue#subscribe(TypeToken, Predicate, TargetedMessageConsumer)
+ * @see Queue#subscribe(TypeToken, String, TargetedMessageConsumer)
+ * @see Queue#subscribe(TypeToken, int, long, BatchMessageConsumer)
+ * @see Queue#subscribeAsync(TypeToken, int, AsyncMessageConsumer)
+ * @see Queue#subscribeLatest(TypeToken, Function, TargetedMessageConsumer)
  * @see Queue#subscribe(MessageConsumer)
  */
 public interface Subscription {
@@ -0,0 +1,150 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.regex.Pattern;
+
+/**
+ * An index of values by topic exchange binding patterns.
+ *
+ * <p>Patterns are compiled into a trie of words, where {@code *} matches exactly one word and {@code #}
+ * matches zero or more words, so matching a routing key costs time proportional to its length rather
+ * than to the number of patterns.</p>
+ *
+ * @param <V> the value type
+ */
+final class TopicTrie<V> {
+  private static final Pattern DOT = Pattern.compile("\\.");
+  private static final String[] EMPTY = new String[0];
+  private static final String STAR = "*";
+  private static final String HASH = "#";
+  private final Node<V> root = new Node<>();
+
+  /**
+   * Adds a value for a pattern.
+   *
+   * @param pattern the pattern
+   * @param value the value
+   */
+  synchronized void add(final @NonNull String pattern, final @NonNull V value) {
+    Node<V> node = this.root;
+    for(final String word : words(pattern)) {
+      node = node.child(word);
+    }
+    node.values.add(value);
+  }
+
+  /**
+   * Removes a value for a pattern.
+   *
+   * @param pattern the pattern
+   * @param value the value
+   */
+  synchronized void remove(final @NonNull String pattern, final @NonNull V value) {
+    final String[] words = words(pattern);
+    // the nodes along the pattern, so those left empty can be removed from their parents
+    @SuppressWarnings("unchecked")
+    final Node<V>[] path = new Node[words.length + 1];
+    path[0] = this.root;
+    for(int i = 0; i < words.length; i++) {
+      path[i + 1] = path[i].children.get(words[i]);
+      if(path[i + 1] == null) {
+        return;
+      }
+    }
+    if(!path[words.length].values.remove(value)) {
+      return;
+    }
+    for(int i = words.length; i > 0 && path[i].values.isEmpty() && path[i].children.isEmpty(); i--) {
+      path[i - 1].children.remove(words[i - 1], path[i]);
+    }
+  }
+
+  /**
+   * Tests if this trie has no values.
+   *
+   * @return {@code true} if this trie has no values, {@code false} otherwise
+   */
+  boolean isEmpty() {
+    return this.root.children.isEmpty() && this.root.values.isEmpty();
+  }
+
+  /**
+   * Gets the values of all patterns matching a routing key.
+   *
+   * @param routingKey the routing key
+   * @return the values
+   */
+  @NonNull Set<V> match(final @NonNull String routingKey) {
+    if(this.isEmpty()) {
+      return Collections.emptySet();
+    }
+    final Set<V> values = new HashSet<>();
+    match(this.root, words(routingKey), 0, values);
+    return values;
+  }
+
+  private static <V> void match(final Node<V> node, final String[] words, final int index, final Set<V> values) {
+    if(index == words.length) {
+      values.addAll(node.values);
+    } else {
+      final @Nullable Node<V> exact = node.children.get(words[index]);
+      if(exact != null) {
+        match(exact, words, index + 1, values);
+      }
+      final @Nullable Node<V> star = node.children.get(STAR);
+      if(star != null) {
+        match(star, words, index + 1, values);
+      }
+    }
+    final @Nullable Node<V> hash = node.children.get(HASH);
+    if(hash != null) {
+      for(int i = index; i <= words.length; i++) {
+        match(hash, words, i, values);
+      }
+    }
+  }
+
+  private static String[] words(final String string) {
+    return string.isEmpty() ? EMPTY : DOT.split(string, -1);
+  }
+
+  private static final class Node<V> {
+    final Map<String, Node<V>> children = new ConcurrentHashMap<>();
+    final Set<V> values = new CopyOnWriteArraySet<>();
+
+    Node<V> child(final String word) {
+      return this.children.computeIfAbsent(word, key -> new Node<>());
+    }
+  }
+}
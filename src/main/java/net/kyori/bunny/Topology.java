@@ -0,0 +1,327 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+import net.kyori.lunar.Named;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.ToIntFunction;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Declares exchanges and queues in bulk.
+ *
+ * <p>Connecting an exchange or queue declares it with a round-trip to the broker. Declaring many of them up front
+ * through {@link #declare(Collection, Collection)} instead sends every declaration without waiting, spread over
+ * several channels, and waits for the broker only once all exchanges and once all queues have been sent.
+ * Exchanges and queues declared this way skip their own declaration when they are next connected.</p>
+ *
+ * <p>A fingerprint of every connected exchange and queue is kept. When the connection is automatically
+ * recovered without {@link BunnyConfiguration#topologyRecovery() topology recovery}, the broker is checked
+ * with passive declarations, and only exchanges and queues which are missing or have changed since they
+ * were declared are declared again. Server-named queues are always declared again, under a new name, along
+ * with their bindings, before consuming resumes.</p>
+ */
+@Singleton
+public final class Topology {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Topology.class);
+  private static final int PARALLELISM = 4;
+  private final Bunny bunny;
+  private final BunnyConfiguration config;
+  /**
+   * Exchanges and queues which have been declared in bulk, but not yet connected.
+   */
+  private final Set<Object> declared = Collections.newSetFromMap(new ConcurrentHashMap<>());
+  /**
+   * A map of connected exchanges to the fingerprints they were declared with.
+   */
+  private final Map<ExchangeImpl, Integer> exchanges = new ConcurrentHashMap<>();
+  /**
+   * A map of connected queues to the fingerprints they were declared with.
+   */
+  private final Map<QueueImpl, Integer> queues = new ConcurrentHashMap<>();
+
+  @Inject
+  private Topology(final Bunny bunny, final BunnyConfiguration config) {
+    this.bunny = bunny;
+    this.config = config;
+    bunny.onRecovery(this::recover);
+  }
+
+  /**
+   * Declares exchanges and queues, along with the bindings of the queues.
+   *
+   * <p>This should be called once {@link Bunny} has been connected, and before the exchanges and queues are.</p>
+   *
+   * @param exchanges the exchanges
+   * @param queues the queues
+   * @throws IOException if an exception is encountered while declaring
+   */
+  public void declare(final @NonNull Collection<? extends Exchange> exchanges, final @NonNull Collection<? extends Queue> queues) throws IOException {
+    this.declare(exchanges, queues, PARALLELISM);
+  }
+
+  /**
+   * Declares exchanges and queues, along with the bindings of the queues.
+   *
+   * <p>This should be called once {@link Bunny} has been connected, and before the exchanges and queues are.</p>
+   *
+   * @param exchanges the exchanges
+   * @param queues the queues
+   * @param parallelism the maximum number of channels to declare on
+   * @throws IOException if an exception is encountered while declaring
+   */
+  public void declare(final @NonNull Collection<? extends Exchange> exchanges, final @NonNull Collection<? extends Queue> queues, final int parallelism) throws IOException {
+    checkArgument(parallelism > 0, "parallelism must be positive");
+    final List<ExchangeImpl> exchangeImpls = new ArrayList<>(exchanges.size());
+    for(final Exchange exchange : exchanges) {
+      checkArgument(exchange instanceof ExchangeImpl, "exchange '%s' does not extend Exchange.Impl", exchange.name());
+      exchangeImpls.add((ExchangeImpl) exchange);
+    }
+    final List<QueueImpl> queueImpls = new ArrayList<>(queues.size());
+    for(final Queue queue : queues) {
+      checkArgument(queue instanceof QueueImpl, "queue '%s' does not extend Queue.Impl", queue.name());
+      // server-named queues must wait for their name
+      if(!queue.name().isEmpty()) {
+        queueImpls.add((QueueImpl) queue);
+      }
+    }
+
+    this.declare(exchangeImpls, queueImpls, parallelism);
+    this.declared.addAll(exchangeImpls);
+    this.declared.addAll(queueImpls);
+  }
+
+  private void declare(final List<ExchangeImpl> exchanges, final List<QueueImpl> queues, final int parallelism) throws IOException {
+    final int count = Math.min(parallelism, Math.max(1, Math.max(exchanges.size(), queues.size())));
+    LOGGER.info("Declaring {} exchanges and {} queues over {} channels", exchanges.size(), queues.size(), count);
+    final List<Channel> channels = new ArrayList<>(count);
+    try {
+      for(int i = 0; i < count; i++) {
+        channels.add(this.bunny.createChannel());
+      }
+      // exchanges must exist before queues can be bound to them
+      for(int i = 0, size = exchanges.size(); i < size; i++) {
+        exchanges.get(i).declare(channels.get(i % count));
+      }
+      this.sync(channels);
+      for(int i = 0, size = queues.size(); i < size; i++) {
+        queues.get(i).declare(channels.get(i % count));
+      }
+      this.sync(channels);
+    } finally {
+      channels.forEach(Topology::close);
+    }
+  }
+
+  /**
+   * Tests if an exchange or queue has been declared in bulk since it was last connected, and clears the mark.
+   *
+   * @param entity the exchange or queue
+   * @return {@code true} if it has been declared, {@code false} otherwise
+   */
+  boolean declared(final @NonNull Object entity) {
+    return this.declared.remove(entity);
+  }
+
+  /**
+   * Records the declaration of a connected exchange.
+   *
+   * @param exchange the exchange
+   */
+  void remember(final @NonNull ExchangeImpl exchange) {
+    this.exchanges.put(exchange, exchange.fingerprint());
+  }
+
+  /**
+   * Records the declaration of a connected queue, including its bindings.
+   *
+   * @param queue the queue
+   */
+  void remember(final @NonNull QueueImpl queue) {
+    this.queues.put(queue, queue.fingerprint());
+  }
+
+  /**
+   * Forgets a disconnected exchange or queue.
+   *
+   * @param entity the exchange or queue
+   */
+  void forget(final @NonNull Object entity) {
+    this.exchanges.remove(entity);
+    this.queues.remove(entity);
+  }
+
+  /**
+   * Declares whatever is missing from the broker once the connection has been recovered, and resumes consuming.
+   */
+  private void recover() {
+    if(this.config.topologyRecovery()) {
+      // the client has already declared everything again
+      return;
+    }
+
+    LOGGER.info("Verifying {} exchanges and {} queues", this.exchanges.size(), this.queues.size());
+    final List<ExchangeImpl> exchanges = this.missing(this.exchanges, ExchangeImpl::fingerprint, (channel, exchange) -> channel.exchangeDeclarePassive(exchange.name()));
+    final List<QueueImpl> queues = this.missing(this.queues, QueueImpl::fingerprint, (channel, queue) -> queue.verify(channel));
+    // bindings to a missing exchange were lost with it
+    for(final QueueImpl queue : this.queues.keySet()) {
+      if(!queues.contains(queue) && exchanges.stream().anyMatch(exchange -> queue.boundTo(exchange.name()))) {
+        queues.add(queue);
+      }
+    }
+
+    try {
+      if(!exchanges.isEmpty() || !queues.isEmpty()) {
+        this.declare(exchanges, queues, PARALLELISM);
+        exchanges.forEach(this::remember);
+        queues.forEach(this::remember);
+      }
+      for(final QueueImpl queue : this.queues.keySet()) {
+        queue.recover();
+      }
+    } catch(final IOException e) {
+      LOGGER.error("Exception encountered while recovering topology", e);
+    }
+  }
+
+  /**
+   * Finds entities which have changed since they were declared, or which no longer exist on the broker.
+   *
+   * <p>Existence is checked with passive declarations spread over several channels. A failed passive
+   * declaration closes its channel, so a new one is opened to continue. Server-named queues are never checked,
+   * as they are always declared again.</p>
+   *
+   * @param model a map of entities to the fingerprints they were declared with
+   * @param fingerprint a function computing the current fingerprint of an entity
+   * @param verifier the passive declaration
+   * @param <T> the entity type
+   * @return the entities to declare again
+   */
+  private <T extends Named> List<T> missing(final Map<T, Integer> model, final ToIntFunction<T> fingerprint, final Verifier<T> verifier) {
+    final List<T> missing = Collections.synchronizedList(new ArrayList<>());
+    final List<T> candidates = new ArrayList<>();
+    model.forEach((entity, declared) -> {
+      // a server-named queue is exclusive or auto-deleted with its connection, and is given a new name when declared
+      // again, so it is always missing
+      if(fingerprint.applyAsInt(entity) != declared || entity.name().isEmpty()) {
+        missing.add(entity);
+      } else {
+        candidates.add(entity);
+      }
+    });
+
+    final int count = Math.min(PARALLELISM, candidates.size());
+    final CompletableFuture<?>[] futures = new CompletableFuture<?>[count];
+    for(int i = 0; i < count; i++) {
+      final int offset = i;
+      futures[i] = CompletableFuture.runAsync(() -> {
+        @Nullable Channel channel = null;
+        for(int j = offset, size = candidates.size(); j < size; j += count) {
+          final T entity = candidates.get(j);
+          try {
+            if(channel == null) {
+              channel = this.bunny.createChannel();
+            }
+            verifier.verify(channel, entity);
+          } catch(final IOException | ShutdownSignalException e) {
+            missing.add(entity);
+            if(channel != null) {
+              close(channel);
+              channel = null;
+            }
+          }
+        }
+        if(channel != null) {
+          close(channel);
+        }
+      }, this.bunny.executor());
+    }
+    CompletableFuture.allOf(futures).join();
+    return new ArrayList<>(missing);
+  }
+
+  /**
+   * Waits for the broker to process everything sent on the channels.
+   *
+   * <p>Any declaration the broker rejected closes its channel, which fails the wait.</p>
+   *
+   * @param channels the channels
+   * @throws IOException if a declaration was rejected
+   */
+  private void sync(final List<Channel> channels) throws IOException {
+    final CompletableFuture<?>[] futures = new CompletableFuture<?>[channels.size()];
+    for(int i = 0; i < futures.length; i++) {
+      final Channel channel = channels.get(i);
+      futures[i] = CompletableFuture.runAsync(() -> {
+        try {
+          // a synchronous no-op
+          channel.basicQos(0);
+        } catch(final IOException e) {
+          throw new CompletionException(e);
+        }
+      }, this.bunny.executor());
+    }
+
+    try {
+      CompletableFuture.allOf(futures).join();
+    } catch(final CompletionException e) {
+      throw new IOException("Exception declaring topology", e.getCause());
+    }
+  }
+
+  @FunctionalInterface
+  private interface Verifier<T> {
+    void verify(final Channel channel, final T entity) throws IOException;
+  }
+
+  private static void close(final Channel channel) {
+    try {
+      if(channel.isOpen()) {
+        channel.close();
+      }
+    } catch(final Exception e) {
+      LOGGER.debug("Exception closing declaration channel", e);
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Publish timestamps and W3C trace context propagation.
+ */
+final class Tracing {
+  private static final Pattern TRACE_PARENT_PATTERN = Pattern.compile("[0-9a-f]{2}-[0-9a-f]{32}-[0-9a-f]{16}-[0-9a-f]{2}");
+  /**
+   * The wall clock time at a {@link System#nanoTime()} of zero, in microseconds.
+   */
+  private static final long EPOCH = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()) - TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+  /**
+   * The trace context of the message being handled by the current thread.
+   */
+  private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+  private Tracing() {
+  }
+
+  /**
+   * Gets the current wall clock time, in microseconds.
+   *
+   * @return the current wall clock time, in microseconds
+   */
+  static long micros() {
+    return micros(System.nanoTime());
+  }
+
+  /**
+   * Gets the wall clock time at a {@link System#nanoTime()} value, in microseconds.
+   *
+   * @param nanos the {@link System#nanoTime()} value
+   * @return the wall clock time, in microseconds
+   */
+  static long micros(final long nanos) {
+    return EPOCH + TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  /**
+   * Gets the current trace context, or {@code null} if the current thread is not handling a traced message.
+   *
+   * @return the current trace context, or {@code null}
+   */
+  static @Nullable String current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Sets the current trace context.
+   *
+   * @param parent the trace context, or {@code null}
+   * @return the previous trace context, or {@code null}
+   */
+  static @Nullable String enter(final @Nullable Object parent) {
+    final @Nullable String previous = CURRENT.get();
+    if(parent != null && TRACE_PARENT_PATTERN.matcher(parent.toString()).matches()) {
+      CURRENT.set(parent.toString());
+    } else {
+      CURRENT.remove();
+    }
+    return previous;
+  }
+
+  /**
+   * Restores the trace context.
+   *
+   * @param previous the trace context returned by {@link #enter(Object)}
+   */
+  static void exit(final @Nullable String previous) {
+    if(previous != null) {
+      CURRENT.set(previous);
+    } else {
+      CURRENT.remove();
+    }
+  }
+
+  /**
+   * Creates the trace context of a published message, continuing the current trace if there is one.
+   *
+   * @return the trace context
+   */
+  static @NonNull String child() {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final @Nullable String parent = CURRENT.get();
+    final String trace = parent != null ? parent.substring(3, 35) : hex(random.nextLong()) + hex(random.nextLong());
+    return "00-" + trace + '-' + hex(random.nextLong()) + "-01";
+  }
+
+  private static String hex(final long value) {
+    final String hex = Long.toHexString(value);
+    return "0000000000000000".substring(hex.length()) + hex;
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.rabbitmq.client.AMQP;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects subscription handlers which have been running for longer than a threshold.
+ */
+final class Watchdog {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Watchdog.class);
+  private static final long MINIMUM_INTERVAL = 50;
+  private final Bunny bunny;
+  private final String queue;
+  private final long threshold;
+  private final StallPolicy policy;
+  private final Set<Invocation> invocations = ConcurrentHashMap.newKeySet();
+  private final AtomicLong stalls = new AtomicLong();
+  private @Nullable ScheduledFuture<?> task;
+
+  /**
+   * Constructs a new watchdog.
+   *
+   * @param bunny the bunny
+   * @param queue the queue name
+   * @param threshold the time after which a handler is stalled, in milliseconds
+   * @param policy the action taken when a handler stalls
+   */
+  Watchdog(final Bunny bunny, final String queue, final long threshold, final StallPolicy policy) {
+    this.bunny = bunny;
+    this.queue = queue;
+    this.threshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+    this.policy = policy;
+  }
+
+  /**
+   * Starts watching.
+   */
+  synchronized void start() {
+    if(this.task == null) {
+      final long interval = Math.max(MINIMUM_INTERVAL, TimeUnit.NANOSECONDS.toMillis(this.threshold) / 2);
+      this.task = this.bunny.scheduler().scheduleAtFixedRate(() -> this.bunny.executor().execute(this::check), interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Stops watching.
+   */
+  synchronized void stop() {
+    if(this.task != null) {
+      this.task.cancel(false);
+      this.task = null;
+    }
+  }
+
+  /**
+   * Records the start of a handler invocation.
+   *
+   * @param subscription the subscription being invoked
+   * @param properties the message properties
+   * @param acknowledgement the acknowledgement of the message, which is an element acknowledgement if the message was coalesced
+   * @return the invocation
+   */
+  Invocation enter(final Subscription subscription, final AMQP.BasicProperties properties, final Acknowledgement acknowledgement) {
+    final Invocation invocation = new Invocation(Thread.currentThread(), subscription, properties, acknowledgement);
+    this.invocations.add(invocation);
+    return invocation;
+  }
+
+  /**
+   * Records the end of a handler invocation.
+   *
+   * @param invocation the invocation
+   */
+  void exit(final Invocation invocation) {
+    this.invocations.remove(invocation);
+    if(invocation.stalled) {
+      LOGGER.warn("Stalled handler for message '{}' on '{}' completed after {}ms", invocation.properties.getMessageId(), this.queue, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - invocation.started));
+    }
+  }
+
+  /**
+   * Gets the number of handlers which are currently stalled.
+   *
+   * @return the number of stalled handlers
+   */
+  int stalled() {
+    int stalled = 0;
+    for(final Invocation invocation : this.invocations) {
+      if(invocation.stalled) {
+        stalled++;
+      }
+    }
+    return stalled;
+  }
+
+  /**
+   * Gets the total number of handlers which have stalled.
+   *
+   * @return the total number of stalled handlers
+   */
+  long stalls() {
+    return this.stalls.get();
+  }
+
+  private void check() {
+    final long now = System.nanoTime();
+    for(final Invocation invocation : this.invocations) {
+      if(!invocation.stalled && now - invocation.started >= this.threshold) {
+        invocation.stalled = true;
+        this.stalls.incrementAndGet();
+        this.stall(invocation, now);
+      }
+    }
+  }
+
+  private void stall(final Invocation invocation, final long now) {
+    final StringBuilder stack = new StringBuilder();
+    for(final StackTraceElement element : invocation.thread.getStackTrace()) {
+      stack.append("\n\tat ").append(element);
+    }
+    LOGGER.warn("Handler for message '{}' on '{}' has been running for {}ms on thread '{}' ({}):{}", invocation.properties.getMessageId(), this.queue, TimeUnit.NANOSECONDS.toMillis(now - invocation.started), invocation.thread.getName(), this.policy, stack);
+    if(this.policy == StallPolicy.REQUEUE || this.policy == StallPolicy.ISOLATE) {
+      invocation.acknowledgement.reject(true);
+    }
+    if(this.policy == StallPolicy.ISOLATE) {
+      invocation.subscription.cancel();
+    }
+  }
+
+  static final class Invocation {
+    final Thread thread;
+    final Subscription subscription;
+    final AMQP.BasicProperties properties;
+    final Acknowledgement acknowledgement;
+    final long started = System.nanoTime();
+    volatile boolean stalled;
+
+    Invocation(final Thread thread, final Subscription subscription, final AMQP.BasicProperties properties, final Acknowledgement acknowledgement) {
+      this.thread = thread;
+      this.subscription = subscription;
+      this.properties = properties;
+      this.acknowledgement = acknowledgement;
+    }
+  }
+}
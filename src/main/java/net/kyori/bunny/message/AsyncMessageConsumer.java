@@ -0,0 +1,49 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny.message;
+
+import com.rabbitmq.client.AMQP;
+import net.kyori.bunny.Subscription;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A message consumer which completes consuming a message asynchronously.
+ *
+ * @param <M> the message type
+ */
+public interface AsyncMessageConsumer<M extends Message> {
+  /**
+   * Consumes a message.
+   *
+   * <p>The message is acknowledged once the returned stage completes normally, and rejected if it completes exceptionally.</p>
+   *
+   * @param message the message
+   * @param subscription the subscription
+   * @param properties the properties
+   * @return a stage which completes once the message has been consumed
+   */
+  @NonNull CompletionStage<?> accept(final @NonNull M message, final @NonNull Subscription subscription, final AMQP.@NonNull BasicProperties properties);
+}
@@ -23,9 +23,14 @@
  */
 package net.kyori.bunny.message;
 
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import net.kyori.bunny.message.codec.Codecs;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import static com.google.common.base.Preconditions.checkState;
+
 /**
  * Metadata describing a message.
  *
@@ -42,6 +47,10 @@ public final class MessageMeta<M extends Message> {
    * <p>This is either the value of {@link Message.Name}, or the {@link Class#getSimpleName() simple name}.</p>
    */
   @NonNull private final String name;
+  /**
+   * The type adapter, resolved when the message is registered.
+   */
+  private @Nullable TypeAdapter<M> adapter;
 
   MessageMeta(final @NonNull Class<M> type) {
     this.type = type;
@@ -67,4 +76,26 @@ public final class MessageMeta<M extends Message> {
   public @NonNull String name() {
     return this.name;
   }
+
+  /**
+   * Gets the type adapter.
+   *
+   * @return the type adapter
+   */
+  public @NonNull TypeAdapter<M> adapter() {
+    checkState(this.adapter != null, "adapter for '%s' has not been resolved", this.name);
+    return this.adapter;
+  }
+
+  /**
+   * Resolves the type adapter.
+   *
+   * <p>A {@link Codecs generated codec} is preferred over the adapter provided by Gson.</p>
+   *
+   * @param gson the gson instance
+   */
+  void resolve(final @NonNull Gson gson) {
+    final @Nullable TypeAdapter<M> codec = Codecs.find(gson, this.type);
+    this.adapter = codec != null ? codec : gson.getAdapter(this.type);
+  }
 }
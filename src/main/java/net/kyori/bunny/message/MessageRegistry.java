@@ -26,6 +26,7 @@ package net.kyori.bunny.message;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.google.common.reflect.TypeToken;
+import com.google.gson.Gson;
 import net.kyori.lunar.reflect.Hierarchy;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -47,15 +48,16 @@ public class MessageRegistry {
   /**
    * A map of message ids to metadata.
    */
-  private final Map<String, MessageMeta<?>> id = new HashMap<>();
+  private final Map<String, MessageMeta<? extends Message>> id = new HashMap<>();
   /**
    * A loading cache of message classes to metadata.
    */
   private final LoadingCache<Class<? extends Message>, MessageMeta<? extends Message>> type = Caffeine.newBuilder().build(this::find);
 
   @Inject
-  private MessageRegistry(final Set<MessageMeta<? extends Message>> messages) {
+  private MessageRegistry(final Gson gson, final Set<MessageMeta<? extends Message>> messages) {
     messages.forEach(meta -> {
+      meta.resolve(gson);
       this.id.put(meta.name(), meta);
       this.type.put(meta.type(), meta);
     });
@@ -68,13 +70,33 @@ public class MessageRegistry {
    * @return the type token, or {@code null}
    */
   public @Nullable TypeToken<? extends Message> type(final @NonNull String name) {
-    final @Nullable MessageMeta<?> meta = this.id.get(name);
+    final @Nullable MessageMeta<? extends Message> meta = this.id.get(name);
     if(meta != null) {
       return TypeToken.of(meta.type());
     }
     return null;
   }
 
+  /**
+   * Gets the metadata for the specified message id.
+   *
+   * @param name the message id
+   * @return the metadata, or {@code null}
+   */
+  public @Nullable MessageMeta<? extends Message> meta(final @NonNull String name) {
+    return this.id.get(name);
+  }
+
+  /**
+   * Gets the metadata for the specified message.
+   *
+   * @param klass the message class
+   * @return the metadata
+   */
+  public @NonNull MessageMeta<? extends Message> meta(final @NonNull Class<? extends Message> klass) {
+    return checkNotNull(this.type.get(klass), "metadata for '%s'", klass.getName());
+  }
+
   /**
    * Gets the id for the specified message.
    *
@@ -82,7 +104,7 @@ public class MessageRegistry {
    * @return the message id
    */
   public @NonNull String id(final @NonNull Class<? extends Message> klass) {
-    return checkNotNull(this.type.get(klass), "metadata for '%s'", klass.getName()).name();
+    return this.meta(klass).name();
   }
 
   private <M extends Message> MessageMeta<M> find(final @NonNull Class<? extends Message> klass) {
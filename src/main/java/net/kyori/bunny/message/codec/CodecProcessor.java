@@ -0,0 +1,369 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny.message.codec;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates a streaming {@link com.google.gson.TypeAdapter} for every concrete message class.
+ *
+ * <p>A codec is only generated when Gson's reflective adapter can be reproduced without reflection: the
+ * class must have a non-private no-argument constructor, and every serialized field must be non-private,
+ * non-final and accessible from the message's package. Other classes are left to Gson.</p>
+ *
+ * @see Codecs
+ */
+@SupportedAnnotationTypes("*")
+public class CodecProcessor extends AbstractProcessor {
+  private static final String MESSAGE = "net.kyori.bunny.message.Message";
+  private static final String SERIALIZED_NAME = "com.google.gson.annotations.SerializedName";
+  private static final String JSON_ADAPTER = "com.google.gson.annotations.JsonAdapter";
+
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  @Override
+  public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment environment) {
+    final TypeElement message = this.processingEnv.getElementUtils().getTypeElement(MESSAGE);
+    if(message == null) {
+      return false;
+    }
+    for(final TypeElement type : ElementFilter.typesIn(environment.getRootElements())) {
+      this.process(type, this.processingEnv.getTypeUtils().erasure(message.asType()));
+    }
+    return false;
+  }
+
+  private void process(final TypeElement type, final TypeMirror message) {
+    for(final TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())) {
+      this.process(nested, message);
+    }
+    if(type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT) || !this.processingEnv.getTypeUtils().isAssignable(type.asType(), message)) {
+      return;
+    }
+
+    final String packageName = this.packageOf(type).getQualifiedName().toString();
+    final String binaryName = this.processingEnv.getElementUtils().getBinaryName(type).toString();
+    final String simpleName = Codecs.PREFIX + binaryName.substring(packageName.isEmpty() ? 0 : packageName.length() + 1).replace('$', '_');
+    final String name = packageName.isEmpty() ? simpleName : packageName + '.' + simpleName;
+
+    final String source;
+    try {
+      source = this.generate(packageName, simpleName, type.getQualifiedName().toString(), this.fields(type));
+    } catch(final Unsupported e) {
+      this.processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, "Not generating a codec: " + e.getMessage(), type);
+      return;
+    }
+
+    try(final Writer writer = this.processingEnv.getFiler().createSourceFile(name, type).openWriter()) {
+      writer.write(source);
+    } catch(final IOException e) {
+      this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Could not write codec: " + e.getMessage(), type);
+    }
+  }
+
+  private List<Field> fields(final TypeElement type) throws Unsupported {
+    if(!type.getTypeParameters().isEmpty()) {
+      throw new Unsupported("class is generic");
+    }
+    for(Element element = type; element instanceof TypeElement; element = element.getEnclosingElement()) {
+      if(element.getModifiers().contains(Modifier.PRIVATE)) {
+        throw new Unsupported("class is not accessible");
+      }
+    }
+    if(type.getNestingKind() == NestingKind.MEMBER && !type.getModifiers().contains(Modifier.STATIC)) {
+      throw new Unsupported("class is an inner class");
+    }
+    if(type.getNestingKind() == NestingKind.LOCAL || type.getNestingKind() == NestingKind.ANONYMOUS) {
+      throw new Unsupported("class is local");
+    }
+    if(this.annotation(type, JSON_ADAPTER) != null) {
+      throw new Unsupported("class has a @JsonAdapter");
+    }
+    final boolean constructor = ElementFilter.constructorsIn(type.getEnclosedElements()).stream()
+      .anyMatch(method -> method.getParameters().isEmpty() && !method.getModifiers().contains(Modifier.PRIVATE));
+    if(!constructor) {
+      throw new Unsupported("class has no accessible no-argument constructor");
+    }
+
+    final PackageElement pkg = this.packageOf(type);
+    final List<Field> fields = new ArrayList<>();
+    final Set<String> names = new HashSet<>();
+    // subclass fields first, matching the order Gson uses
+    for(TypeElement current = type; current != null && current.getKind() == ElementKind.CLASS && !current.getQualifiedName().contentEquals("java.lang.Object"); current = this.superclass(current)) {
+      if(!current.getTypeParameters().isEmpty() && current != type) {
+        throw new Unsupported("superclass " + current.getSimpleName() + " is generic");
+      }
+      for(final VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+        final Set<Modifier> modifiers = field.getModifiers();
+        if(modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) {
+          continue;
+        }
+        if(modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL)) {
+          throw new Unsupported("field " + field.getSimpleName() + " is private or final");
+        }
+        if(!modifiers.contains(Modifier.PUBLIC) && !this.packageOf(current).equals(pkg)) {
+          throw new Unsupported("field " + field.getSimpleName() + " is not accessible");
+        }
+        if(this.annotation(field, JSON_ADAPTER) != null) {
+          throw new Unsupported("field " + field.getSimpleName() + " has a @JsonAdapter");
+        }
+        final Field f = new Field(fields.size(), field);
+        for(final String name : f.names) {
+          if(!names.add(name)) {
+            throw new Unsupported("field name " + name + " is declared more than once");
+          }
+        }
+        fields.add(f);
+      }
+    }
+    return fields;
+  }
+
+  private String generate(final String packageName, final String simpleName, final String type, final List<Field> fields) throws Unsupported {
+    final StringBuilder sb = new StringBuilder();
+    if(!packageName.isEmpty()) {
+      sb.append("package ").append(packageName).append(";\n\n");
+    }
+    sb.append("/**\n * A codec for {@link ").append(type).append("}, generated by {@link ").append(CodecProcessor.class.getName()).append("}.\n */\n");
+    sb.append("public final class ").append(simpleName).append(" extends com.google.gson.TypeAdapter<").append(type).append("> {\n");
+    sb.append("  private final com.google.gson.Gson gson;\n");
+    for(final Field field : fields) {
+      if(!field.direct()) {
+        sb.append("  private final com.google.gson.TypeAdapter<").append(this.boxed(field.type)).append("> ").append(field.adapter()).append(";\n");
+      }
+    }
+    sb.append("\n  public ").append(simpleName).append("(final com.google.gson.Gson gson) {\n");
+    sb.append("    this.gson = gson;\n");
+    for(final Field field : fields) {
+      if(!field.direct()) {
+        sb.append("    this.").append(field.adapter()).append(" = gson.getAdapter(").append(this.token(field.type)).append(");\n");
+      }
+    }
+    sb.append("  }\n\n");
+
+    sb.append("  @Override\n  public void write(final com.google.gson.stream.JsonWriter out, final ").append(type).append(" value) throws java.io.IOException {\n");
+    sb.append("    if(value == null) {\n      out.nullValue();\n      return;\n    }\n");
+    sb.append("    out.beginObject();\n");
+    for(final Field field : fields) {
+      sb.append("    out.name(").append(literal(field.names.get(0))).append(");\n");
+      if(field.direct()) {
+        sb.append("    out.value(value.").append(field.name).append(");\n");
+      } else if(this.runtime(field.type)) {
+        sb.append("    net.kyori.bunny.message.codec.Codecs.runtime(this.gson, this.").append(field.adapter()).append(", ").append(this.render(field.type)).append(".class, value.").append(field.name).append(").write(out, value.").append(field.name).append(");\n");
+      } else {
+        sb.append("    this.").append(field.adapter()).append(".write(out, value.").append(field.name).append(");\n");
+      }
+    }
+    sb.append("    out.endObject();\n  }\n\n");
+
+    sb.append("  @Override\n  public ").append(type).append(" read(final com.google.gson.stream.JsonReader in) throws java.io.IOException {\n");
+    sb.append("    if(in.peek() == com.google.gson.stream.JsonToken.NULL) {\n      in.nextNull();\n      return null;\n    }\n");
+    sb.append("    final ").append(type).append(" value = new ").append(type).append("();\n");
+    sb.append("    in.beginObject();\n    while(in.hasNext()) {\n      switch(in.nextName()) {\n");
+    for(final Field field : fields) {
+      for(final String name : field.names) {
+        sb.append("        case ").append(literal(name)).append(":\n");
+      }
+      if(field.direct()) {
+        sb.append("          if(in.peek() == com.google.gson.stream.JsonToken.NULL) {\n            in.nextNull();\n          } else {\n");
+        sb.append("            value.").append(field.name).append(" = in.").append(field.type.getKind() == TypeKind.INT ? "nextInt" : "nextLong").append("();\n          }\n");
+      } else if(field.type.getKind().isPrimitive()) {
+        final String local = field.adapter() + "Value";
+        sb.append("          final ").append(this.boxed(field.type)).append(" ").append(local).append(" = this.").append(field.adapter()).append(".read(in);\n");
+        sb.append("          if(").append(local).append(" != null) {\n            value.").append(field.name).append(" = ").append(local).append(";\n          }\n");
+      } else {
+        sb.append("          value.").append(field.name).append(" = this.").append(field.adapter()).append(".read(in);\n");
+      }
+      sb.append("          break;\n");
+    }
+    sb.append("        default:\n          in.skipValue();\n      }\n    }\n    in.endObject();\n    return value;\n  }\n}\n");
+    return sb.toString();
+  }
+
+  /**
+   * Tests if a field is written using the adapter for its runtime type, which Gson does for fields of a non-final, non-generic class type.
+   */
+  private boolean runtime(final TypeMirror type) {
+    if(type.getKind() != TypeKind.DECLARED || !((DeclaredType) type).getTypeArguments().isEmpty()) {
+      return false;
+    }
+    final Element element = ((DeclaredType) type).asElement();
+    return element.getKind() != ElementKind.ENUM && !element.getModifiers().contains(Modifier.FINAL);
+  }
+
+  private String token(final TypeMirror type) throws Unsupported {
+    if(type.getKind().isPrimitive() || (type.getKind() == TypeKind.DECLARED && ((DeclaredType) type).getTypeArguments().isEmpty())) {
+      return this.render(type) + ".class";
+    }
+    return "new com.google.gson.reflect.TypeToken<" + this.render(type) + ">() {}";
+  }
+
+  private String boxed(final TypeMirror type) throws Unsupported {
+    if(type.getKind().isPrimitive()) {
+      return this.processingEnv.getTypeUtils().boxedClass((javax.lang.model.type.PrimitiveType) type).getQualifiedName().toString();
+    }
+    return this.render(type);
+  }
+
+  private String render(final TypeMirror type) throws Unsupported {
+    switch(type.getKind()) {
+      case BOOLEAN: return "boolean";
+      case BYTE: return "byte";
+      case SHORT: return "short";
+      case INT: return "int";
+      case LONG: return "long";
+      case CHAR: return "char";
+      case FLOAT: return "float";
+      case DOUBLE: return "double";
+      case ARRAY: return this.render(((ArrayType) type).getComponentType()) + "[]";
+      case DECLARED:
+        final DeclaredType declared = (DeclaredType) type;
+        final String name = ((TypeElement) declared.asElement()).getQualifiedName().toString();
+        if(declared.getTypeArguments().isEmpty()) {
+          return name;
+        }
+        final List<String> arguments = new ArrayList<>();
+        for(final TypeMirror argument : declared.getTypeArguments()) {
+          arguments.add(this.render(argument));
+        }
+        return name + arguments.stream().collect(Collectors.joining(", ", "<", ">"));
+      case WILDCARD:
+        final javax.lang.model.type.WildcardType wildcard = (javax.lang.model.type.WildcardType) type;
+        if(wildcard.getExtendsBound() != null) {
+          return "? extends " + this.render(wildcard.getExtendsBound());
+        } else if(wildcard.getSuperBound() != null) {
+          return "? super " + this.render(wildcard.getSuperBound());
+        }
+        return "?";
+      default:
+        throw new Unsupported("type " + type + " is not supported");
+    }
+  }
+
+  private static String literal(final String string) {
+    return '"' + string.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+  }
+
+  private TypeElement superclass(final TypeElement type) {
+    final TypeMirror superclass = type.getSuperclass();
+    return superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+  }
+
+  private PackageElement packageOf(final Element element) {
+    return this.processingEnv.getElementUtils().getPackageOf(element);
+  }
+
+  private AnnotationMirror annotation(final Element element, final String type) {
+    for(final AnnotationMirror annotation : element.getAnnotationMirrors()) {
+      if(((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().contentEquals(type)) {
+        return annotation;
+      }
+    }
+    return null;
+  }
+
+  private final class Field {
+    final int index;
+    final String name;
+    final TypeMirror type;
+    /**
+     * The serialized name, followed by any alternate names accepted when reading.
+     */
+    final List<String> names;
+
+    Field(final int index, final VariableElement field) throws Unsupported {
+      this.index = index;
+      this.name = field.getSimpleName().toString();
+      this.type = field.asType();
+      CodecProcessor.this.render(this.type);
+      this.names = this.names(field);
+    }
+
+    private List<String> names(final VariableElement field) {
+      final AnnotationMirror annotation = CodecProcessor.this.annotation(field, SERIALIZED_NAME);
+      if(annotation == null) {
+        return Collections.singletonList(this.name);
+      }
+      final List<String> names = new ArrayList<>();
+      CodecProcessor.this.processingEnv.getElementUtils().getElementValuesWithDefaults(annotation).forEach((ExecutableElement method, AnnotationValue value) -> {
+        if(method.getSimpleName().contentEquals("value")) {
+          names.add(0, (String) value.getValue());
+        } else if(method.getSimpleName().contentEquals("alternate")) {
+          for(final Object alternate : (List<?>) value.getValue()) {
+            names.add((String) ((AnnotationValue) alternate).getValue());
+          }
+        }
+      });
+      return names;
+    }
+
+    /**
+     * Tests if this field is read and written directly, without an adapter.
+     */
+    boolean direct() {
+      return this.type.getKind() == TypeKind.INT || this.type.getKind() == TypeKind.LONG;
+    }
+
+    String adapter() {
+      return "adapter" + this.index;
+    }
+  }
+
+  private static final class Unsupported extends Exception {
+    Unsupported(final String message) {
+      super(message, null, false, false);
+    }
+  }
+}
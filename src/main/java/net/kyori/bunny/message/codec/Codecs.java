@@ -0,0 +1,139 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny.message.codec;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Locates codecs generated by the {@link CodecProcessor}.
+ *
+ * <p>A generated codec replaces the reflective adapter Gson would otherwise create for a message. Codecs
+ * reproduce Gson's default behaviour, so they are only used when the Gson instance would use its own reflective
+ * adapter for the message, with {@link FieldNamingPolicy#IDENTITY identity} naming, the default exclusion rules,
+ * and the default adapters for the primitive fields codecs write directly.</p>
+ */
+public final class Codecs {
+  /**
+   * The prefix of a generated codec class name.
+   */
+  static final String PREFIX = "BunnyCodec_";
+  /**
+   * A Gson instance with the default configuration.
+   */
+  private static final Gson DEFAULT = new Gson();
+  /**
+   * The class of the reflective adapter Gson creates for a class without an adapter of its own.
+   */
+  private static final Class<?> REFLECTIVE = DEFAULT.getAdapter(Reflective.class).getClass();
+
+  private Codecs() {
+  }
+
+  /**
+   * Finds and constructs the generated codec for a message class.
+   *
+   * <p>Gson does not expose the adapters and factories registered with it, so the only way to tell if one of them
+   * applies to the message is to ask Gson for its adapter. When a codec has been generated, this builds Gson's
+   * reflective adapter for the message once, which Gson then keeps for as long as it exists - the codec only saves
+   * the cost of reflection when messages are encoded and decoded, not when they are resolved.</p>
+   *
+   * @param gson the gson instance
+   * @param type the message class
+   * @param <M> the message type
+   * @return the codec, or {@code null} if none was generated or it cannot be used
+   */
+  public static <M> @Nullable TypeAdapter<M> find(final @NonNull Gson gson, final @NonNull Class<M> type) {
+    if(gson.fieldNamingStrategy() != FieldNamingPolicy.IDENTITY
+      // any exclusion setting, such as a version or @Expose, creates a new excluder
+      || gson.excluder() != DEFAULT.excluder()
+      // int and long fields are written without an adapter
+      || gson.getAdapter(int.class) != DEFAULT.getAdapter(int.class)
+      || gson.getAdapter(long.class) != DEFAULT.getAdapter(long.class)) {
+      return null;
+    }
+
+    final Class<?> codec;
+    try {
+      codec = Class.forName(name(type), true, type.getClassLoader());
+    } catch(final ClassNotFoundException e) {
+      return null;
+    }
+
+    // a registered adapter or factory takes precedence over the reflective adapter - checked last, as it is the
+    // only check which builds an adapter
+    if(gson.getAdapter(type).getClass() != REFLECTIVE) {
+      return null;
+    }
+
+    try {
+      return (TypeAdapter<M>) codec.getConstructor(Gson.class).newInstance(gson);
+    } catch(final ReflectiveOperationException e) {
+      throw new IllegalStateException(String.format("Could not construct codec for '%s'", type.getName()), e);
+    }
+  }
+
+  /**
+   * Gets the name of the generated codec for a message class.
+   *
+   * @param type the message class
+   * @return the codec class name
+   */
+  static @NonNull String name(final @NonNull Class<?> type) {
+    final String name = type.getName();
+    final int dot = name.lastIndexOf('.');
+    return name.substring(0, dot + 1) + PREFIX + name.substring(dot + 1).replace('$', '_');
+  }
+
+  /**
+   * Selects the adapter used to write a field value, preferring the adapter for its runtime type in the same way Gson does.
+   *
+   * @param gson the gson instance
+   * @param declared the adapter for the declared field type
+   * @param type the declared field type
+   * @param value the field value
+   * @param <T> the declared field type
+   * @return the adapter to write the value with
+   */
+  public static <T> @NonNull TypeAdapter<T> runtime(final @NonNull Gson gson, final @NonNull TypeAdapter<T> declared, final @NonNull Class<?> type, final @Nullable Object value) {
+    if(value == null || value.getClass() == type) {
+      return declared;
+    }
+    final TypeAdapter<?> runtime = gson.getAdapter(value.getClass());
+    if(runtime.getClass() != REFLECTIVE || declared.getClass() == REFLECTIVE) {
+      return (TypeAdapter<T>) runtime;
+    }
+    return declared;
+  }
+
+  /**
+   * A class Gson creates a reflective adapter for.
+   */
+  private static final class Reflective {
+    int value;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.rabbitmq.client.Channel;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AcknowledgementTest {
+  private final List<String> calls = new CopyOnWriteArrayList<>();
+  private final Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(), new Class<?>[]{Channel.class}, (proxy, method, arguments) -> {
+    this.calls.add(method.getName() + Arrays.toString(arguments));
+    return null;
+  });
+
+  @Test
+  void testRelease() {
+    final Acknowledgement acknowledgement = new Acknowledgement(this.channel, 1, acknowledged -> this.calls.add("settled " + acknowledged));
+    acknowledgement.retain();
+    acknowledgement.release();
+    assertTrue(this.calls.isEmpty());
+    acknowledgement.release();
+    assertEquals(Arrays.asList("basicAck[1, false]", "settled true"), this.calls);
+  }
+
+  @Test
+  void testReject() {
+    final Acknowledgement acknowledgement = new Acknowledgement(this.channel, 1, acknowledged -> this.calls.add("settled " + acknowledged));
+    acknowledgement.retain();
+    assertTrue(acknowledgement.reject(true));
+    assertFalse(acknowledgement.reject(false));
+    acknowledgement.release();
+    acknowledgement.release();
+    assertEquals(Arrays.asList("basicNack[1, false, true]", "settled false"), this.calls);
+  }
+
+  @Test
+  void testElements() {
+    final Acknowledgement delivery = new Acknowledgement(this.channel, 1, acknowledged -> this.calls.add("delivery " + acknowledged));
+    final Acknowledgement first = delivery.element(requeue -> this.calls.add("rejected " + requeue), acknowledged -> this.calls.add("first " + acknowledged));
+    final Acknowledgement second = delivery.element(requeue -> this.calls.add("rejected " + requeue), acknowledged -> this.calls.add("second " + acknowledged));
+    delivery.release();
+    // rejecting an element leaves the delivery and its other elements alone
+    assertTrue(first.reject(false));
+    first.release();
+    assertEquals(Arrays.asList("rejected false", "first false"), this.calls);
+    second.release();
+    assertEquals(Arrays.asList("rejected false", "first false", "basicAck[1, false]", "delivery true", "second true"), this.calls);
+  }
+
+  @Test
+  void testElementRejectionFailed() {
+    final Acknowledgement delivery = new Acknowledgement(this.channel, 1, acknowledged -> this.calls.add("delivery " + acknowledged));
+    final Acknowledgement element = delivery.element(requeue -> {
+      throw new IOException("failed");
+    }, null);
+    delivery.release();
+    element.reject(false);
+    // the delivery is requeued as a whole instead
+    assertEquals(Arrays.asList("basicNack[1, false, true]", "delivery false"), this.calls);
+    element.release();
+    assertEquals(2, this.calls.size());
+  }
+
+  @Test
+  void testHold() {
+    final Acknowledgement delivery = new Acknowledgement(this.channel, 1, acknowledged -> this.calls.add("delivery " + acknowledged));
+    final Acknowledgement first = delivery.hold(acknowledged -> this.calls.add("first " + acknowledged));
+    final Acknowledgement second = delivery.hold(acknowledged -> this.calls.add("second " + acknowledged));
+    delivery.release();
+    first.release();
+    assertEquals(Collections.singletonList("first true"), this.calls);
+    // rejecting a hold rejects the delivery, even though the other is still outstanding
+    assertTrue(second.reject(true));
+    assertEquals(Arrays.asList("first true", "basicNack[1, false, true]", "delivery false", "second false"), this.calls);
+  }
+
+  @Test
+  void testNoElements() {
+    final Acknowledgement delivery = new Acknowledgement(this.channel, 1, null);
+    delivery.release();
+    assertEquals(Collections.singletonList("basicAck[1, false]"), this.calls);
+  }
+}
@@ -0,0 +1,331 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import net.kyori.bunny.message.Message;
+import net.kyori.bunny.message.Messages;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in for a broker, which records the calls made over its channels.
+ *
+ * <p>Nothing is routed: deliveries are made by calling {@link #deliver(String, String, AMQP.BasicProperties, String)}
+ * directly, every call is recorded as a {@link #calls() call}, and published messages are also
+ * {@link #published() collected}.</p>
+ */
+final class Broker {
+  private static final Map<Class<?>, Object> DEFAULTS = ImmutableMap.of(boolean.class, false, int.class, 0, long.class, 0L);
+  private final List<String> calls = new CopyOnWriteArrayList<>();
+  private final BlockingQueue<Publish> published = new LinkedBlockingQueue<>();
+  private final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<>();
+  private final Map<String, Consumer> consumers = new ConcurrentHashMap<>();
+  private final AtomicInteger channels = new AtomicInteger();
+  private final AtomicInteger tags = new AtomicInteger();
+  private final AtomicLong deliveryTags = new AtomicLong();
+  private final AtomicInteger generated = new AtomicInteger();
+  private final Injector injector;
+  private final Bunny bunny;
+
+  @SafeVarargs
+  Broker(final Class<? extends Message>... messages) {
+    this.injector = Guice.createInjector(binder -> {
+      binder.bind(BunnyConfiguration.class).toInstance(new Configuration());
+      binder.bind(Gson.class).toInstance(new Gson());
+      Messages.bind(binder, messages);
+    });
+    this.bunny = this.injector.getInstance(Bunny.class);
+    final Connection connection = proxy(Connection.class, (method, arguments) -> {
+      if(method.getName().equals("createChannel")) {
+        return this.channel();
+      }
+      return null;
+    });
+    set(this.bunny, "connection", connection);
+    set(this.bunny, "channel", this.channel());
+  }
+
+  Bunny bunny() {
+    return this.bunny;
+  }
+
+  /**
+   * Gets the messages published over every channel, in the order they were published.
+   *
+   * @return the published messages
+   */
+  BlockingQueue<Publish> published() {
+    return this.published;
+  }
+
+  /**
+   * Gets the confirm listeners added to every channel.
+   *
+   * @return the confirm listeners
+   */
+  List<ConfirmListener> confirmListeners() {
+    return this.confirmListeners;
+  }
+
+  /**
+   * Gets the calls made over every channel, such as {@code "basicAck[1, false]"}.
+   *
+   * @return the calls
+   */
+  List<String> calls() {
+    return this.calls;
+  }
+
+  /**
+   * Gets the calls made over every channel to methods with a name, without the method name.
+   *
+   * @param name the method name
+   * @return the arguments of the calls
+   */
+  List<String> calls(final @NonNull String name) {
+    final List<String> calls = new ArrayList<>();
+    for(final String call : this.calls) {
+      if(call.startsWith(name + '[')) {
+        calls.add(call.substring(name.length()));
+      }
+    }
+    return calls;
+  }
+
+  /**
+   * Gets the numbers of the channels consuming from a queue.
+   *
+   * @param queue the queue name
+   * @return the channel numbers
+   */
+  Set<String> channels(final @NonNull String queue) {
+    final Set<String> channels = new HashSet<>();
+    for(final String tag : this.consumers.keySet()) {
+      if(tag.startsWith(queue + '/')) {
+        channels.add(tag.split("/")[1]);
+      }
+    }
+    return channels;
+  }
+
+  /**
+   * Runs the listeners {@link Bunny} runs once its connection has been automatically recovered.
+   *
+   * <p>Consumers of the previous connection are forgotten, as the broker would.</p>
+   */
+  void recover() {
+    this.consumers.clear();
+    try {
+      final Method recovered = Bunny.class.getDeclaredMethod("recovered");
+      recovered.setAccessible(true);
+      recovered.invoke(this.bunny);
+    } catch(final ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  <T> T inject(final @NonNull T instance) {
+    this.injector.injectMembers(instance);
+    return instance;
+  }
+
+  <T> T get(final @NonNull Class<T> type) {
+    return this.injector.getInstance(type);
+  }
+
+  /**
+   * Delivers a message to every consumer of a queue.
+   *
+   * @param queue the queue name
+   * @param routingKey the routing key
+   * @param properties the properties
+   * @param body the body
+   * @return the delivery tag
+   * @throws IOException if a consumer throws
+   */
+  long deliver(final @NonNull String queue, final @NonNull String routingKey, final AMQP.@NonNull BasicProperties properties, final @NonNull String body) throws IOException {
+    return this.deliver(queue, routingKey, properties, body.getBytes(StandardCharsets.UTF_8));
+  }
+
+  long deliver(final @NonNull String queue, final @NonNull String routingKey, final AMQP.@NonNull BasicProperties properties, final byte@NonNull[] body) throws IOException {
+    final long tag = this.deliveryTags.incrementAndGet();
+    for(final Map.Entry<String, Consumer> consumer : this.consumers.entrySet()) {
+      if(consumer.getKey().startsWith(queue + '/')) {
+        consumer.getValue().handleDelivery(consumer.getKey(), new Envelope(tag, false, "exchange", routingKey), properties, body);
+      }
+    }
+    return tag;
+  }
+
+  private Channel channel() {
+    final int number = this.channels.incrementAndGet();
+    final AtomicLong sequence = new AtomicLong();
+    return proxy(Channel.class, (method, arguments) -> {
+      this.calls.add(method.getName() + Arrays.toString(arguments != null ? arguments : new Object[0]));
+      switch(method.getName()) {
+        case "getChannelNumber":
+          return number;
+        case "isOpen":
+          return true;
+        case "basicConsume": {
+          final String tag = arguments[0] + "/" + number + "/" + this.tags.incrementAndGet();
+          this.consumers.put(tag, (Consumer) arguments[arguments.length - 1]);
+          return tag;
+        }
+        case "getNextPublishSeqNo":
+          return sequence.get() + 1;
+        case "addConfirmListener":
+          this.confirmListeners.add((ConfirmListener) arguments[0]);
+          break;
+        case "basicPublish":
+          sequence.incrementAndGet();
+          // (exchange, routing key, [mandatory, [immediate,]] properties, body)
+          this.published.add(new Publish((String) arguments[0], (String) arguments[1], (AMQP.BasicProperties) arguments[arguments.length - 2], (byte[]) arguments[arguments.length - 1]));
+          break;
+        case "basicCancel":
+          this.consumers.remove((String) arguments[0]);
+          break;
+        case "queueDeclare": {
+          final String name = arguments == null || ((String) arguments[0]).isEmpty() ? "generated-" + this.generated.incrementAndGet() : (String) arguments[0];
+          return proxy(AMQP.Queue.DeclareOk.class, (declareMethod, declareArguments) -> declareMethod.getName().equals("getQueue") ? name : null);
+        }
+        default:
+          break;
+      }
+      return null;
+    });
+  }
+
+  private interface Handler {
+    Object invoke(final Method method, final Object[] arguments) throws Throwable;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(final Class<T> type, final Handler handler) {
+    return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, arguments) -> {
+      if(method.getDeclaringClass() == Object.class) {
+        switch(method.getName()) {
+          case "equals":
+            return proxy == arguments[0];
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          default:
+            return type.getSimpleName();
+        }
+      }
+      final Object result = handler.invoke(method, arguments);
+      return result != null || !method.getReturnType().isPrimitive() ? result : DEFAULTS.get(method.getReturnType());
+    });
+  }
+
+  private static void set(final Object instance, final String name, final Object value) {
+    try {
+      final Field field = instance.getClass().getDeclaredField(name);
+      field.setAccessible(true);
+      field.set(instance, value);
+    } catch(final ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static final class Publish {
+    final String exchange;
+    final String routingKey;
+    final AMQP.BasicProperties properties;
+    final byte[] body;
+
+    Publish(final String exchange, final String routingKey, final AMQP.BasicProperties properties, final byte[] body) {
+      this.exchange = exchange;
+      this.routingKey = routingKey;
+      this.properties = properties;
+      this.body = body;
+    }
+  }
+
+  static final class Configuration implements BunnyConfiguration {
+    @Override
+    public List<Address> addresses() {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public String username() {
+      return "guest";
+    }
+
+    @Override
+    public String password() {
+      return "guest";
+    }
+
+    @Override
+    public String virtualHost() {
+      return "/";
+    }
+
+    @Override
+    public boolean automaticRecovery() {
+      return false;
+    }
+
+    @Override
+    public long automaticRecoveryInterval() {
+      return 0;
+    }
+
+    @Override
+    public boolean topologyRecovery() {
+      return false;
+    }
+  }
+}
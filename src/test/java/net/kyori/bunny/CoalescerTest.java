@@ -0,0 +1,153 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.rabbitmq.client.AMQP;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CoalescerTest {
+  private static final AMQP.BasicProperties NONE = new AMQP.BasicProperties();
+  private static final AMQP.BasicProperties PERSISTENT = new AMQP.BasicProperties.Builder().deliveryMode(2).build();
+  private final Broker broker = new Broker();
+  private final BlockingQueue<Broker.Publish> sent = new LinkedBlockingQueue<>();
+
+  @Test
+  void testEligible() {
+    assertTrue(Coalescer.eligible(NONE));
+    assertTrue(Coalescer.eligible(PERSISTENT));
+    assertTrue(Coalescer.eligible(new AMQP.BasicProperties.Builder().headers(Collections.emptyMap()).build()));
+    assertFalse(Coalescer.eligible(new AMQP.BasicProperties.Builder().headers(Collections.singletonMap("a", "b")).build()));
+    assertFalse(Coalescer.eligible(new AMQP.BasicProperties.Builder().priority(1).build()));
+    assertFalse(Coalescer.eligible(new AMQP.BasicProperties.Builder().expiration("1000").build()));
+  }
+
+  @Test
+  void testRoundTrip() throws IOException {
+    final Coalescer coalescer = this.coalescer(1024, TimeUnit.MINUTES.toMillis(1));
+    coalescer.add("key", NONE, "1", "first", bytes("a"));
+    coalescer.add("key", PERSISTENT, "2", "second", bytes(""));
+    coalescer.add("key", NONE, "3", "third", bytes("ccc"));
+    assertTrue(this.sent.isEmpty());
+    coalescer.flush();
+    final Broker.Publish envelope = this.sent.poll();
+    assertNotNull(envelope);
+    assertTrue(this.sent.isEmpty());
+    assertEquals("key", envelope.routingKey);
+    assertEquals(Coalescer.TYPE, envelope.properties.getType());
+    // one persistent message makes the whole envelope persistent
+    assertEquals(Integer.valueOf(2), envelope.properties.getDeliveryMode());
+    final List<AMQP.BasicProperties> properties = new ArrayList<>();
+    final List<byte[]> bodies = new ArrayList<>();
+    Coalescer.unpack(envelope.properties, envelope.body, (elementProperties, body) -> {
+      properties.add(elementProperties);
+      bodies.add(body);
+    });
+    assertEquals(3, properties.size());
+    assertEquals(Arrays.asList("first", "second", "third"), Arrays.asList(properties.get(0).getType(), properties.get(1).getType(), properties.get(2).getType()));
+    assertEquals(Arrays.asList("1", "2", "3"), Arrays.asList(properties.get(0).getMessageId(), properties.get(1).getMessageId(), properties.get(2).getMessageId()));
+    assertArrayEquals(bytes("a"), bodies.get(0));
+    assertArrayEquals(bytes(""), bodies.get(1));
+    assertArrayEquals(bytes("ccc"), bodies.get(2));
+  }
+
+  @Test
+  void testRoutingKeys() {
+    final Coalescer coalescer = this.coalescer(1024, TimeUnit.MINUTES.toMillis(1));
+    coalescer.add("a", NONE, "1", "type", bytes("a"));
+    coalescer.add("b", NONE, "2", "type", bytes("b"));
+    coalescer.flush();
+    assertEquals(2, this.sent.size());
+    for(final Broker.Publish envelope : this.sent) {
+      assertNull(envelope.properties.getDeliveryMode());
+    }
+    // nothing is sent for a routing key without pending messages
+    coalescer.flush();
+    assertEquals(2, this.sent.size());
+  }
+
+  @Test
+  void testPrune() {
+    final Coalescer coalescer = this.coalescer(1024, TimeUnit.MINUTES.toMillis(1));
+    coalescer.add("a", NONE, "1", "type", bytes("a"));
+    coalescer.add("b", NONE, "2", "type", bytes("b"));
+    assertEquals(2, coalescer.pending());
+    coalescer.flush();
+    // flushed envelopes are forgotten, and a new one is created for the next message
+    assertEquals(0, coalescer.pending());
+    coalescer.add("a", NONE, "3", "type", bytes("c"));
+    assertEquals(1, coalescer.pending());
+    coalescer.flush();
+    assertEquals(3, this.sent.size());
+    assertEquals(0, coalescer.pending());
+  }
+
+  @Test
+  void testFull() {
+    final Coalescer coalescer = this.coalescer(30, TimeUnit.MINUTES.toMillis(1));
+    coalescer.add("key", NONE, "1", "type", bytes("0123456789"));
+    assertTrue(this.sent.isEmpty());
+    // the second message does not fit, so the first is sent on its own
+    coalescer.add("key", NONE, "2", "type", bytes("0123456789"));
+    assertEquals(1, this.sent.size());
+  }
+
+  @Test
+  void testLinger() throws InterruptedException {
+    final Coalescer coalescer = this.coalescer(1024, 50);
+    coalescer.add("key", NONE, "1", "type", bytes("a"));
+    assertNotNull(this.sent.poll(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void testMalformed() {
+    final byte[] truncated = Arrays.copyOf(bytes("\u0000\u0004type"), 6);
+    assertThrows(IOException.class, () -> Coalescer.unpack(NONE, truncated, (properties, body) -> {}));
+  }
+
+  private Coalescer coalescer(final int size, final long linger) {
+    return new Coalescer(this.broker.bunny(), (routingKey, properties, body) -> this.sent.add(new Broker.Publish("exchange", routingKey, properties, body)), size, linger);
+  }
+
+  private static byte[] bytes(final String string) {
+    return string.getBytes(StandardCharsets.UTF_8);
+  }
+}
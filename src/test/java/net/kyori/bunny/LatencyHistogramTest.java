@@ -0,0 +1,116 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+  @Test
+  void testExact() {
+    for(int i = 0; i < 16; i++) {
+      assertEquals(i, LatencyHistogram.index(i));
+      assertEquals(i, LatencyHistogram.value(i));
+    }
+  }
+
+  @Test
+  void testBounds() {
+    for(final long value : values()) {
+      final int index = LatencyHistogram.index(value);
+      // the bucket holds the value, and the previous bucket does not
+      assertTrue(LatencyHistogram.value(index) >= value, "upper bound of " + value);
+      assertTrue(LatencyHistogram.value(index - 1) < value, "lower bound of " + value);
+      assertTrue(LatencyHistogram.value(index) - value <= value / 8, "relative error of " + value);
+    }
+  }
+
+  @Test
+  void testMonotonic() {
+    int previous = -1;
+    for(long value = 0; value < 1 << 16; value++) {
+      final int index = LatencyHistogram.index(value);
+      assertTrue(index == previous || index == previous + 1, "index of " + value);
+      previous = index;
+    }
+  }
+
+  @Test
+  void testSnapshot() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    for(int i = 1; i <= 100; i++) {
+      histogram.record(i);
+    }
+    final QueueStatistics.Latency latency = histogram.snapshot();
+    assertEquals(100, latency.count());
+    assertEquals(50.5, latency.mean());
+    assertEquals(100, latency.max());
+    assertEquals(1, latency.percentile(0));
+    assertTrue(latency.percentile(50) >= 50 && latency.percentile(50) <= 50 + 50 / 8);
+    assertTrue(latency.percentile(99) >= 99 && latency.percentile(99) <= 100);
+    assertEquals(100, latency.percentile(100));
+    assertThrows(IllegalArgumentException.class, () -> latency.percentile(101));
+  }
+
+  @Test
+  void testRecord() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(1_000, 2_000_000);
+    histogram.record(Long.MAX_VALUE);
+    final QueueStatistics.Latency latency = histogram.snapshot();
+    assertEquals(3, latency.count());
+    assertEquals(0, latency.percentile(0));
+    // a percentile is the upper bound of its bucket
+    assertTrue(latency.percentile(50) >= 1_999 && latency.percentile(50) <= 1_999 + 1_999 / 8);
+    assertEquals(Long.MAX_VALUE, latency.max());
+  }
+
+  @Test
+  void testEmpty() {
+    final QueueStatistics.Latency latency = new LatencyHistogram().snapshot();
+    assertEquals(0, latency.count());
+    assertEquals(0, latency.mean());
+    assertEquals(0, latency.percentile(50));
+  }
+
+  private static List<Long> values() {
+    final List<Long> values = new ArrayList<>();
+    for(int bits = 4; bits < Long.SIZE - 1; bits++) {
+      final long power = 1L << bits;
+      values.add(power - 1);
+      values.add(power);
+      values.add(power + 1);
+      values.add(power + power / 3);
+    }
+    values.add(Long.MAX_VALUE);
+    return values;
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedBlobStoreTest {
+  private final ManualScheduler scheduler = new ManualScheduler();
+  private Path directory;
+
+  @BeforeEach
+  void createDirectory() throws IOException {
+    this.directory = Files.createTempDirectory("bunny");
+  }
+
+  @AfterEach
+  void deleteDirectory() throws IOException {
+    try(final Stream<Path> paths = Files.walk(this.directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Test
+  void testPutGet() throws IOException {
+    final MappedBlobStore store = new MappedBlobStore(this.directory, 16, TimeUnit.HOURS.toMillis(1), this.scheduler);
+    final String first = store.put(bytes("first"));
+    final String second = store.put(bytes("second"));
+    final String large = store.put(bytes("larger than a single segment"));
+    assertEquals("first", string(store.get(first)));
+    assertEquals("second", string(store.get(second)));
+    assertEquals("larger than a single segment", string(store.get(large)));
+    assertNotEquals(segment(first), segment(large));
+  }
+
+  @Test
+  void testInvalidReference() throws IOException {
+    final MappedBlobStore store = new MappedBlobStore(this.directory, 16, TimeUnit.HOURS.toMillis(1), this.scheduler);
+    assertThrows(IllegalArgumentException.class, () -> store.get("../escape:0:1"));
+  }
+
+  @Test
+  void testExpire() throws IOException {
+    final MappedBlobStore store = new MappedBlobStore(this.directory, 16, TimeUnit.HOURS.toMillis(1), this.scheduler);
+    final Path foreign = Files.createFile(this.directory.resolve("foreign-0.segment"));
+    final String old = store.put(bytes("old"));
+    final String current = store.put(bytes("larger than a single segment"));
+    age(foreign);
+    age(this.directory.resolve(segment(old)));
+    age(this.directory.resolve(segment(current)));
+    this.scheduler.expire();
+    // only sealed segments of this store are expired, never the one being written to
+    assertTrue(Files.exists(foreign));
+    assertFalse(Files.exists(this.directory.resolve(segment(old))));
+    assertEquals("larger than a single segment", string(store.get(current)));
+  }
+
+  @Test
+  void testSharedDirectory() throws IOException {
+    final ManualScheduler otherScheduler = new ManualScheduler();
+    final MappedBlobStore store = new MappedBlobStore(this.directory, 16, TimeUnit.HOURS.toMillis(1), this.scheduler);
+    final MappedBlobStore other = new MappedBlobStore(this.directory, 16, TimeUnit.HOURS.toMillis(1), otherScheduler);
+    final String sealed = store.put(bytes("sealed"));
+    store.put(bytes("larger than a single segment"));
+    final String otherSealed = other.put(bytes("other sealed"));
+    final String otherCurrent = other.put(bytes("also larger than a segment"));
+    age(this.directory.resolve(segment(sealed)));
+    age(this.directory.resolve(segment(otherSealed)));
+    this.scheduler.expire();
+    assertFalse(Files.exists(this.directory.resolve(segment(sealed))));
+    // the other store's segments are left alone, sealed or not, and stay readable through either store
+    assertEquals("other sealed", string(store.get(otherSealed)));
+    assertEquals("also larger than a segment", string(store.get(otherCurrent)));
+    otherScheduler.expire();
+    assertFalse(Files.exists(this.directory.resolve(segment(otherSealed))));
+    assertTrue(Files.exists(this.directory.resolve(segment(otherCurrent))));
+  }
+
+  /**
+   * A scheduler which only runs the expiry task when asked to.
+   */
+  private static final class ManualScheduler extends ScheduledThreadPoolExecutor {
+    private @Nullable Runnable task;
+
+    ManualScheduler() {
+      super(1);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(final Runnable command, final long initialDelay, final long delay, final TimeUnit unit) {
+      this.task = command;
+      return null;
+    }
+
+    void expire() {
+      assertNotNull(this.task);
+      this.task.run();
+    }
+  }
+
+  private static void age(final Path path) throws IOException {
+    Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)));
+  }
+
+  private static String segment(final String reference) {
+    return reference.substring(0, reference.indexOf(':'));
+  }
+
+  private static byte[] bytes(final String string) {
+    return string.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String string(final ByteBuffer buffer) {
+    return StandardCharsets.UTF_8.decode(buffer).toString();
+  }
+}
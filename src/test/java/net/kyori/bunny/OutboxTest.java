@@ -0,0 +1,146 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.ConfirmListener;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboxTest {
+  private static final AMQP.BasicProperties PROPERTIES = new AMQP.BasicProperties.Builder()
+    .type("type")
+    .messageId("id")
+    .priority(3)
+    .timestamp(new Date(1000))
+    .headers(Collections.singletonMap("header", "value"))
+    .build();
+  private Path directory;
+
+  @BeforeEach
+  void createDirectory() throws IOException {
+    this.directory = Files.createTempDirectory("bunny");
+  }
+
+  @AfterEach
+  void deleteDirectory() throws IOException {
+    try(final Stream<Path> paths = Files.walk(this.directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Test
+  void testPublish() throws IOException {
+    final Broker broker = new Broker();
+    final Outbox outbox = new Outbox(this.directory, 1024, false);
+    outbox.open(broker.bunny());
+    outbox.publish("exchange", "key", false, false, PROPERTIES, bytes("body"));
+    final Broker.Publish publish = broker.published().remove();
+    assertEquals("exchange", publish.exchange);
+    assertEquals("key", publish.routingKey);
+    assertEquals("id", publish.properties.getMessageId());
+    assertArrayEquals(bytes("body"), publish.body);
+  }
+
+  @Test
+  void testReplay() throws IOException {
+    final Broker broker = new Broker();
+    final Outbox outbox = new Outbox(this.directory, 1024, false);
+    outbox.open(broker.bunny());
+    outbox.publish("exchange", "confirmed", false, false, PROPERTIES, bytes("first"));
+    outbox.publish("exchange", "unconfirmed", true, false, PROPERTIES, bytes("second"));
+    broker.confirmListeners().get(0).handleAck(1, false);
+
+    // a new process sends the unconfirmed message again, read back from the log
+    final Broker restarted = new Broker();
+    new Outbox(this.directory, 1024, false).open(restarted.bunny());
+    final Broker.Publish publish = restarted.published().remove();
+    assertTrue(restarted.published().isEmpty());
+    assertEquals("exchange", publish.exchange);
+    assertEquals("unconfirmed", publish.routingKey);
+    assertArrayEquals(bytes("second"), publish.body);
+    assertEquals("type", publish.properties.getType());
+    assertEquals("id", publish.properties.getMessageId());
+    assertEquals(Integer.valueOf(3), publish.properties.getPriority());
+    assertEquals(new Date(1000), publish.properties.getTimestamp());
+    assertEquals(Collections.singletonMap("header", "value"), publish.properties.getHeaders());
+  }
+
+  @Test
+  void testNack() throws IOException, InterruptedException {
+    final Broker broker = new Broker();
+    final Outbox outbox = new Outbox(this.directory, 1024, false);
+    outbox.open(broker.bunny());
+    outbox.publish("exchange", "key", false, false, PROPERTIES, bytes("body"));
+    broker.published().remove();
+    broker.confirmListeners().get(0).handleNack(1, false);
+    final Broker.Publish publish = broker.published().poll(5, TimeUnit.SECONDS);
+    assertNotNull(publish);
+    assertArrayEquals(bytes("body"), publish.body);
+  }
+
+  @Test
+  void testRelease() throws IOException {
+    final Broker broker = new Broker();
+    // every record fills a segment of its own
+    final Outbox outbox = new Outbox(this.directory, 16, false);
+    outbox.open(broker.bunny());
+    for(int i = 0; i < 3; i++) {
+      outbox.publish("exchange", "key", false, false, PROPERTIES, bytes("body"));
+    }
+    assertEquals(3, segments());
+    final ConfirmListener listener = broker.confirmListeners().get(0);
+    listener.handleAck(2, true);
+    // only sealed segments are deleted
+    assertEquals(1, segments());
+    listener.handleAck(3, false);
+    assertEquals(1, segments());
+  }
+
+  private long segments() throws IOException {
+    try(final Stream<Path> paths = Files.list(this.directory)) {
+      return paths.count();
+    }
+  }
+
+  private static byte[] bytes(final String string) {
+    return string.getBytes(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PriorityDispatcherTest {
+  @Test
+  void testPriority() throws InterruptedException {
+    final ManualExecutor executor = new ManualExecutor();
+    final PriorityDispatcher dispatcher = new PriorityDispatcher(executor, 16, TimeUnit.MINUTES.toMillis(1));
+    final List<String> dispatched = new CopyOnWriteArrayList<>();
+    dispatcher.submit(null, () -> dispatched.add("none"));
+    dispatcher.submit(5, () -> dispatched.add("high"));
+    dispatcher.submit(1, () -> dispatched.add("low"));
+    dispatcher.submit(5, () -> dispatched.add("high again"));
+    dispatcher.submit(3, () -> dispatched.add("medium"));
+    // a single drain is scheduled however many deliveries are buffered
+    assertEquals(1, executor.tasks.size());
+    executor.run();
+    assertEquals(Arrays.asList("high", "high again", "medium", "low", "none"), dispatched);
+  }
+
+  @Test
+  void testRange() throws InterruptedException {
+    final ManualExecutor executor = new ManualExecutor();
+    final PriorityDispatcher dispatcher = new PriorityDispatcher(executor, 16, TimeUnit.MINUTES.toMillis(1));
+    final List<String> dispatched = new CopyOnWriteArrayList<>();
+    dispatcher.submit(-1, () -> dispatched.add("negative"));
+    dispatcher.submit(0, () -> dispatched.add("lowest"));
+    dispatcher.submit(300, () -> dispatched.add("above highest"));
+    dispatcher.submit(255, () -> dispatched.add("highest"));
+    executor.run();
+    // priorities outside of the range a message can have are treated as the nearest one within it
+    assertEquals(Arrays.asList("above highest", "highest", "negative", "lowest"), dispatched);
+  }
+
+  @Test
+  void testStarvation() throws InterruptedException {
+    final ManualExecutor executor = new ManualExecutor();
+    final PriorityDispatcher dispatcher = new PriorityDispatcher(executor, 16, 50);
+    final List<String> dispatched = new CopyOnWriteArrayList<>();
+    dispatcher.submit(0, () -> dispatched.add("starved"));
+    Thread.sleep(100);
+    dispatcher.submit(9, () -> dispatched.add("high"));
+    executor.run();
+    assertEquals(Arrays.asList("starved", "high"), dispatched);
+  }
+
+  @Test
+  void testException() throws InterruptedException {
+    final ManualExecutor executor = new ManualExecutor();
+    final PriorityDispatcher dispatcher = new PriorityDispatcher(executor, 16, TimeUnit.MINUTES.toMillis(1));
+    final List<String> dispatched = new CopyOnWriteArrayList<>();
+    dispatcher.submit(1, () -> {
+      throw new IllegalStateException();
+    });
+    dispatcher.submit(0, () -> dispatched.add("after"));
+    executor.run();
+    assertEquals(Arrays.asList("after"), dispatched);
+    // draining stops once empty, and resumes on the next delivery
+    dispatcher.submit(0, () -> dispatched.add("later"));
+    assertEquals(1, executor.tasks.size());
+    executor.run();
+    assertEquals(Arrays.asList("after", "later"), dispatched);
+  }
+
+  @Test
+  void testCapacity() throws InterruptedException {
+    final ManualExecutor executor = new ManualExecutor();
+    final PriorityDispatcher dispatcher = new PriorityDispatcher(executor, 1, TimeUnit.MINUTES.toMillis(1));
+    dispatcher.submit(0, () -> {});
+    final Thread submitter = new Thread(() -> {
+      try {
+        dispatcher.submit(0, () -> {});
+      } catch(final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    submitter.start();
+    submitter.join(200);
+    assertTrue(submitter.isAlive(), "submit should wait while the buffer is full");
+    executor.run();
+    submitter.join(TimeUnit.SECONDS.toMillis(5));
+    assertFalse(submitter.isAlive());
+  }
+
+  private static final class ManualExecutor implements Executor {
+    final Queue<Runnable> tasks = new ArrayDeque<>();
+
+    @Override
+    public synchronized void execute(final Runnable command) {
+      this.tasks.add(command);
+    }
+
+    void run() {
+      Runnable task;
+      while((task = this.poll()) != null) {
+        task.run();
+      }
+    }
+
+    private synchronized Runnable poll() {
+      return this.tasks.poll();
+    }
+  }
+}
@@ -0,0 +1,443 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.google.common.reflect.TypeToken;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import net.kyori.bunny.message.Delivery;
+import net.kyori.bunny.message.Message;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueueImplTest {
+  private final Broker broker = new Broker(Ping.class);
+  private final List<String> received = new CopyOnWriteArrayList<>();
+
+  @Test
+  void testDeduplication() throws IOException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {
+      @Override
+      protected long deduplicationSize() {
+        return 16;
+      }
+    });
+    queue.subscribe(TypeToken.of(Ping.class), (message, subscription, properties) -> this.received.add(message.text));
+    this.deliver("a", "1");
+    this.deliver("b", "1");
+    this.deliver("c", "2");
+    this.deliver("d", null);
+    this.deliver("e", null);
+    assertEquals(Arrays.asList("a", "c", "d", "e"), this.received);
+    // duplicates are still acknowledged
+    assertEquals(5, this.broker.calls("basicAck").size());
+  }
+
+  @Test
+  void testDeduplicationRejected() throws IOException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {
+      @Override
+      protected long deduplicationSize() {
+        return 16;
+      }
+    });
+    queue.subscribeAsync(TypeToken.of(Ping.class), 1, (message, subscription, properties) -> {
+      this.received.add(message.text);
+      final CompletableFuture<Void> stage = new CompletableFuture<>();
+      if(message.text.equals("rejected")) {
+        stage.completeExceptionally(new IllegalStateException());
+      } else {
+        stage.complete(null);
+      }
+      return stage;
+    });
+    this.deliver("rejected", "1");
+    // a rejected delivery does not suppress its redelivery
+    this.deliver("redelivered", "1");
+    this.deliver("duplicate", "1");
+    assertEquals(Arrays.asList("rejected", "redelivered"), this.received);
+  }
+
+  @Test
+  void testBatch() throws IOException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {});
+    final Subscription subscription = queue.subscribe(TypeToken.of(Ping.class), 2, TimeUnit.HOURS.toMillis(1), (deliveries, batch) ->
+      this.received.add(deliveries.stream().map(delivery -> delivery.message().text).collect(Collectors.joining(",")))
+    );
+    this.deliver("a", null);
+    this.deliver("b", null);
+    this.deliver("c", null);
+    assertEquals(Collections.singletonList("a,b"), this.received);
+    // messages are acknowledged once their batch has been handled
+    assertEquals(Arrays.asList("[1, false]", "[2, false]"), this.broker.calls("basicAck"));
+    subscription.cancel();
+    assertEquals(Arrays.asList("a,b", "c"), this.received);
+    assertEquals(Arrays.asList("[1, false]", "[2, false]", "[3, false]"), this.broker.calls("basicAck"));
+  }
+
+  @Test
+  void testBatchFailed() throws IOException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {});
+    queue.subscribe(TypeToken.of(Ping.class), 2, TimeUnit.HOURS.toMillis(1), (deliveries, batch) -> {
+      throw new IllegalStateException();
+    });
+    this.deliver("a", null);
+    this.deliver("b", null);
+    // a failed batch is dead-lettered as a whole
+    assertTrue(this.broker.calls("basicAck").isEmpty());
+    assertEquals(Arrays.asList("[1, false, false]", "[2, false, false]"), this.broker.calls("basicNack"));
+  }
+
+  @Test
+  void testEnvelope() throws IOException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {});
+    queue.subscribe(TypeToken.of(Ping.class), (message, subscription, properties) -> this.received.add(message.text + ' ' + properties.getMessageId()));
+    final Coalescer coalescer = new Coalescer(this.broker.bunny(), (routingKey, properties, body) -> this.broker.deliver("test", routingKey, properties, body), 1024, TimeUnit.HOURS.toMillis(1));
+    coalescer.add("key", new AMQP.BasicProperties(), "1", "Ping", "{\"text\":\"a\"}".getBytes(StandardCharsets.UTF_8));
+    coalescer.add("key", new AMQP.BasicProperties(), "2", "Ping", "{\"text\":\"b\"}".getBytes(StandardCharsets.UTF_8));
+    coalescer.flush();
+    assertEquals(Arrays.asList("a 1", "b 2"), this.received);
+    // the envelope is acknowledged once, after every element has been handled
+    assertEquals(Collections.singletonList("[1, false]"), this.broker.calls("basicAck"));
+  }
+
+  @Test
+  void testClaimCheck() throws IOException {
+    final Map<String, byte[]> blobs = new HashMap<>();
+    final BlobStore store = new BlobStore() {
+      @Override
+      public @NonNull String put(final byte@NonNull[] payload) {
+        final String reference = String.valueOf(blobs.size());
+        blobs.put(reference, payload);
+        return reference;
+      }
+
+      @Override
+      public @NonNull ByteBuffer get(final @NonNull String reference) {
+        return ByteBuffer.wrap(blobs.get(reference));
+      }
+    };
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {
+      @Override
+      protected @Nullable BlobStore blobStore() {
+        return store;
+      }
+    });
+    queue.subscribe(TypeToken.of(Ping.class), (message, subscription, properties) -> this.received.add(message.text));
+    final String reference = store.put("{\"text\":\"large\"}".getBytes(StandardCharsets.UTF_8));
+    this.broker.deliver("test", "key", new AMQP.BasicProperties.Builder().type("Ping").headers(Collections.singletonMap(Headers.CLAIM_CHECK, reference)).build(), new byte[0]);
+    assertEquals(Collections.singletonList("large"), this.received);
+  }
+
+  @Test
+  void testFilter() throws IOException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {});
+    queue.subscribe(TypeToken.of(Ping.class), properties -> "first".equals(properties.getAppId()), (message, subscription, properties) -> this.received.add("first " + message.text));
+    queue.subscribe(TypeToken.of(Ping.class), properties -> "second".equals(properties.getAppId()), (message, subscription, properties) -> this.received.add("second " + message.text));
+    this.broker.deliver("test", "key", new AMQP.BasicProperties.Builder().type("Ping").appId("first").build(), "{\"text\":\"a\"}");
+    this.broker.deliver("test", "key", new AMQP.BasicProperties.Builder().type("Ping").appId("second").build(), "{\"text\":\"b\"}");
+    this.broker.deliver("test", "key", new AMQP.BasicProperties.Builder().type("Ping").appId("third").build(), "{\"text\":\"c\"}");
+    assertEquals(Arrays.asList("first a", "second b"), this.received);
+    assertEquals(3, this.broker.calls("basicAck").size());
+  }
+
+  @Test
+  void testShards() throws IOException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {
+      @Override
+      protected int shards() {
+        return 3;
+      }
+    });
+    queue.subscribe(TypeToken.of(Ping.class), (message, subscription, properties) -> this.received.add(message.text));
+    assertEquals(Collections.singletonList("[test.shards, x-consistent-hash, false, false, false, {hash-header=x-bunny-hash-key}]"), this.broker.calls("exchangeDeclare"));
+    assertEquals(Arrays.asList("[test.0, test.shards, 1, null]", "[test.1, test.shards, 1, null]", "[test.2, test.shards, 1, null]"), this.broker.calls("queueBind"));
+    // every shard is consumed from
+    assertEquals(3, this.broker.calls("basicConsume").size());
+    this.broker.deliver("test.1", "key", new AMQP.BasicProperties.Builder().type("Ping").build(), "{\"text\":\"a\"}");
+    assertEquals(Collections.singletonList("a"), this.received);
+  }
+
+  @Test
+  void testStream() throws IOException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", true, false, false, Collections.singletonMap("x-queue-type", "stream")) {
+      @Override
+      protected @Nullable StreamOffset stream() {
+        return StreamOffset.first();
+      }
+    });
+    queue.subscribe(TypeToken.of(Ping.class), (message, subscription, properties) -> this.received.add(message.text));
+    final List<String> consumes = this.broker.calls("basicConsume");
+    assertEquals(1, consumes.size());
+    assertTrue(consumes.get(0).contains("{x-stream-offset=first}"), consumes.get(0));
+    this.broker.deliver("test", "key", new AMQP.BasicProperties.Builder().type("Ping").headers(Collections.singletonMap("x-stream-offset", 0L)).build(), "{\"text\":\"a\"}");
+    assertEquals(Collections.singletonList("a"), this.received);
+    assertEquals(Collections.singletonList("[1, false]"), this.broker.calls("basicAck"));
+  }
+
+  @Test
+  void testStreamConstraints() {
+    final IllegalStateException exception = assertThrows(IllegalStateException.class, () -> this.connect(new QueueImpl("test", false, false, false, null) {
+      @Override
+      protected @Nullable StreamOffset stream() {
+        return StreamOffset.first();
+      }
+    }));
+    assertEquals("stream queue 'test' must be durable", exception.getMessage());
+    assertThrows(IllegalStateException.class, () -> this.connect(new QueueImpl("test", true, false, false, null) {
+      @Override
+      protected @Nullable StreamOffset stream() {
+        return StreamOffset.first();
+      }
+
+      @Override
+      protected int maximumPrefetch() {
+        return 100;
+      }
+    }));
+    assertTrue(this.broker.calls("queueDeclare").isEmpty());
+  }
+
+  @Test
+  void testExpiry() throws IOException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {
+      @Override
+      protected @NonNull Expiry expiry() {
+        return Expiry.DEAD_LETTER;
+      }
+    });
+    queue.subscribe(TypeToken.of(Ping.class), (message, subscription, properties) -> this.received.add(message.text));
+    final long now = System.currentTimeMillis();
+    this.broker.deliver("test", "key", new AMQP.BasicProperties.Builder().type("Ping").headers(Collections.singletonMap(Headers.DEADLINE, now - 1000)).build(), "{\"text\":\"a\"}");
+    this.broker.deliver("test", "key", new AMQP.BasicProperties.Builder().type("Ping").headers(Collections.singletonMap(Headers.DEADLINE, now + 60000)).build(), "{\"text\":\"b\"}");
+    this.broker.deliver("test", "key", new AMQP.BasicProperties.Builder().type("Ping").timestamp(new Date(now - 60000)).expiration("1000").build(), "{\"text\":\"c\"}");
+    this.broker.deliver("test", "key", new AMQP.BasicProperties.Builder().type("Ping").expiration("1000").build(), "{\"text\":\"d\"}");
+    assertEquals(Arrays.asList("b", "d"), this.received);
+    assertEquals(Arrays.asList("[1, false, false]", "[3, false, false]"), this.broker.calls("basicNack"));
+    assertEquals(2, queue.statistics().types().get("Ping").expired());
+  }
+
+  @Test
+  void testLatest() throws IOException, InterruptedException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {});
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final CountDownLatch consumed = new CountDownLatch(3);
+    queue.subscribeLatest(TypeToken.of(Ping.class), delivery -> delivery.message().text.charAt(0), (message, subscription, properties) -> {
+      try {
+        blocked.await();
+      } catch(final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      this.received.add(message.text);
+      consumed.countDown();
+    });
+    this.deliver("x", null);
+    this.deliver("a1", null);
+    this.deliver("a2", null);
+    this.deliver("b1", null);
+    // the replaced message is acknowledged straight away
+    assertEquals(Collections.singletonList("[2, false]"), this.broker.calls("basicAck"));
+    blocked.countDown();
+    assertTrue(consumed.await(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("x", "a2", "b1"), this.received);
+  }
+
+  @Test
+  void testPublisher() throws IOException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {});
+    final AtomicReference<org.reactivestreams.Subscription> subscription = new AtomicReference<>();
+    queue.publisher(TypeToken.of(Ping.class)).subscribe(new Subscriber<Delivery<Ping>>() {
+      @Override
+      public void onSubscribe(final org.reactivestreams.Subscription s) {
+        subscription.set(s);
+      }
+
+      @Override
+      public void onNext(final Delivery<Ping> delivery) {
+        QueueImplTest.this.received.add(delivery.message().text);
+      }
+
+      @Override
+      public void onError(final Throwable t) {
+        QueueImplTest.this.received.add("error");
+      }
+
+      @Override
+      public void onComplete() {
+      }
+    });
+    subscription.get().request(1);
+    this.deliver("a", null);
+    this.deliver("b", null);
+    // a delivery waits for demand, and is acknowledged once it has been consumed
+    assertEquals(Collections.singletonList("a"), this.received);
+    assertEquals(Collections.singletonList("[1, false]"), this.broker.calls("basicAck"));
+    subscription.get().request(1);
+    assertEquals(Arrays.asList("a", "b"), this.received);
+    assertEquals(Arrays.asList("[1, false]", "[2, false]"), this.broker.calls("basicAck"));
+    subscription.get().request(0);
+    assertEquals(Arrays.asList("a", "b", "error"), this.received);
+  }
+
+  @Test
+  void testAsync() throws IOException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {});
+    final Map<String, CompletableFuture<Void>> stages = new HashMap<>();
+    queue.subscribeAsync(TypeToken.of(Ping.class), 2, (message, subscription, properties) -> {
+      final CompletableFuture<Void> stage = new CompletableFuture<>();
+      stages.put(message.text, stage);
+      return stage;
+    });
+    this.deliver("a", null);
+    this.deliver("b", null);
+    assertTrue(this.broker.calls("basicAck").isEmpty());
+    stages.get("b").complete(null);
+    assertEquals(Collections.singletonList("[2, false]"), this.broker.calls("basicAck"));
+    // a failed message is dead-lettered rather than requeued
+    stages.get("a").completeExceptionally(new IllegalStateException());
+    assertEquals(Collections.singletonList("[1, false, false]"), this.broker.calls("basicNack"));
+  }
+
+  @Test
+  void testAsyncSaturated() throws IOException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {});
+    final CompletableFuture<Void> stage = new CompletableFuture<>();
+    queue.subscribeAsync(TypeToken.of(Ping.class), 1, (message, subscription, properties) -> {
+      this.received.add(message.text);
+      return stage;
+    });
+    this.deliver("a", null);
+    // the delivery thread is not held up until the first message has been consumed
+    this.deliver("b", null);
+    assertEquals(Collections.singletonList("a"), this.received);
+    assertEquals(Collections.singletonList("[2, false, true]"), this.broker.calls("basicNack"));
+    stage.complete(null);
+    assertEquals(Collections.singletonList("[1, false]"), this.broker.calls("basicAck"));
+  }
+
+  @Test
+  void testAsyncHandling() throws IOException {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {});
+    final CompletableFuture<Void> stage = new CompletableFuture<>();
+    queue.subscribeAsync(TypeToken.of(Ping.class), 1, (message, subscription, properties) -> stage);
+    this.deliver("a", null);
+    // handling is only over once the stage has completed
+    assertEquals(0, queue.statistics().types().get("Ping").handling().count());
+    stage.complete(null);
+    assertEquals(1, queue.statistics().types().get("Ping").handling().count());
+  }
+
+  @Test
+  void testLatestTrace() throws Exception {
+    final QueueImpl queue = this.connect(new QueueImpl("test", false, false, false, null) {});
+    final String trace = "00-0123456789abcdef0123456789abcdef-0123456789abcdef-01";
+    final CompletableFuture<String> current = new CompletableFuture<>();
+    queue.subscribeLatest(TypeToken.of(Ping.class), delivery -> delivery.message().text, (message, subscription, properties) -> current.complete(Tracing.current()));
+    this.broker.deliver("test", "key", new AMQP.BasicProperties.Builder().type("Ping").headers(Collections.singletonMap(Headers.TRACE_PARENT, trace)).build(), "{\"text\":\"a\"}");
+    // handled on another thread, in the trace of the message
+    assertEquals(trace, current.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  void testChannels() throws IOException {
+    this.connect(new QueueImpl("first", false, false, false, null) {});
+    this.connect(new QueueImpl("second", false, false, false, null) {});
+    // every queue consumes on a channel of its own
+    assertEquals(1, this.broker.channels("first").size());
+    assertNotEquals(this.broker.channels("first"), this.broker.channels("second"));
+  }
+
+  @Test
+  void testChannelGroup() throws IOException {
+    final QueueImpl first = this.connect(new QueueImpl("first", false, false, false, null) {
+      @Override
+      protected @Nullable String channelGroup() {
+        return "group";
+      }
+    });
+    final QueueImpl second = this.connect(new QueueImpl("second", false, false, false, null) {
+      @Override
+      protected @Nullable String channelGroup() {
+        return "group";
+      }
+    });
+    assertEquals(this.broker.channels("first"), this.broker.channels("second"));
+    final int closed = this.broker.calls("close").size();
+    first.disconnect();
+    // the channel is closed once every queue in the group has stopped consuming
+    assertEquals(closed, this.broker.calls("close").size());
+    second.disconnect();
+    assertEquals(closed + 1, this.broker.calls("close").size());
+  }
+
+  @Test
+  void testServerNamedRecovery() throws IOException {
+    final QueueImpl queue = new QueueImpl("", false, true, true, null) {};
+    queue.bind(new ExchangeImpl("events", BuiltinExchangeType.TOPIC, false, false, false, null) {}, "key");
+    this.connect(queue);
+    assertEquals(1, this.broker.channels("generated-1").size());
+    this.broker.recover();
+    // declared again under a new name, then bound and consumed from under that name
+    assertEquals(2, this.broker.calls("queueDeclare").size());
+    assertTrue(this.broker.calls("queueBindNoWait").contains("[generated-2, events, key, null]"));
+    assertTrue(this.broker.channels("generated-1").isEmpty());
+    assertEquals(1, this.broker.channels("generated-2").size());
+  }
+
+  private QueueImpl connect(final QueueImpl queue) throws IOException {
+    this.broker.inject(queue).connect();
+    return queue;
+  }
+
+  private long deliver(final String text, final String id) throws IOException {
+    return this.broker.deliver("test", "key", new AMQP.BasicProperties.Builder().type("Ping").messageId(id).build(), "{\"text\":\"" + text + "\"}");
+  }
+
+  static final class Ping implements Message {
+    String text;
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import com.google.common.base.Ticker;
+import com.rabbitmq.client.AMQP;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+  private static final AMQP.BasicProperties LOWEST = new AMQP.BasicProperties();
+  private static final AMQP.BasicProperties PRIORITY = new AMQP.BasicProperties.Builder().priority(1).build();
+  private final ManualTicker ticker = new ManualTicker();
+
+  @Test
+  void testBurst() {
+    // a burst of one second at 10 messages per second allows the first message and 10 more
+    final RateLimiter limiter = new RateLimiter(10, 0, TimeUnit.SECONDS.toMillis(1), RateLimiter.Overflow.REJECT, this.ticker);
+    int acquired = 0;
+    while(acquired < 100 && limiter.acquire(0, LOWEST)) {
+      acquired++;
+    }
+    assertEquals(11, acquired);
+    this.ticker.advance(TimeUnit.MILLISECONDS.toNanos(100));
+    assertTrue(limiter.acquire(0, LOWEST));
+    assertFalse(limiter.acquire(0, LOWEST));
+  }
+
+  @Test
+  void testBytes() {
+    final RateLimiter limiter = new RateLimiter(0, 100, 0, RateLimiter.Overflow.REJECT, this.ticker);
+    assertTrue(limiter.acquire(100, LOWEST));
+    assertFalse(limiter.acquire(1, LOWEST));
+  }
+
+  @Test
+  void testRefund() {
+    // two messages fit in the burst, and a message rejected for its size does not use one up
+    final RateLimiter limiter = new RateLimiter(1, 1000, TimeUnit.SECONDS.toMillis(1), RateLimiter.Overflow.REJECT, this.ticker);
+    // exceeds the byte burst by 200ms
+    assertTrue(limiter.acquire(1200, LOWEST));
+    for(int i = 0; i < 10; i++) {
+      assertFalse(limiter.acquire(1, LOWEST));
+    }
+    this.ticker.advance(TimeUnit.MILLISECONDS.toNanos(300));
+    assertTrue(limiter.acquire(1, LOWEST));
+  }
+
+  @Test
+  void testWait() {
+    final RateLimiter limiter = new RateLimiter(10, 0, 0, RateLimiter.Overflow.WAIT);
+    assertTrue(limiter.acquire(0, LOWEST));
+    final long start = System.nanoTime();
+    assertTrue(limiter.acquire(0, LOWEST));
+    assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(80));
+  }
+
+  @Test
+  void testWaitInterrupted() {
+    final RateLimiter limiter = new RateLimiter(1, 0, 0, RateLimiter.Overflow.WAIT, this.ticker);
+    assertTrue(limiter.acquire(0, LOWEST));
+    Thread.currentThread().interrupt();
+    try {
+      assertFalse(limiter.acquire(0, LOWEST));
+      assertTrue(Thread.currentThread().isInterrupted());
+    } finally {
+      Thread.interrupted();
+    }
+  }
+
+  @Test
+  void testShed() {
+    final RateLimiter limiter = new RateLimiter(10, 0, 0, RateLimiter.Overflow.SHED, this.ticker);
+    assertTrue(limiter.acquire(0, LOWEST));
+    assertFalse(limiter.acquire(0, LOWEST));
+    // messages with a priority wait instead of being shed
+    this.ticker.step(TimeUnit.MILLISECONDS.toNanos(50));
+    assertTrue(limiter.acquire(0, PRIORITY));
+  }
+
+  @Test
+  void testShedInterrupted() {
+    final RateLimiter limiter = new RateLimiter(1, 0, 0, RateLimiter.Overflow.SHED, this.ticker);
+    assertTrue(limiter.acquire(0, LOWEST));
+    Thread.currentThread().interrupt();
+    try {
+      assertFalse(limiter.acquire(0, PRIORITY));
+    } finally {
+      Thread.interrupted();
+    }
+    // the interrupted message gave back what it reserved, so it does not cause the next one to be shed
+    this.ticker.advance(TimeUnit.SECONDS.toNanos(1));
+    assertTrue(limiter.acquire(0, LOWEST));
+  }
+
+  @Test
+  void testNegative() {
+    assertThrows(IllegalArgumentException.class, () -> new RateLimiter(-1, 0, RateLimiter.Overflow.WAIT));
+  }
+
+  /**
+   * A ticker which only moves when told to, or by a fixed step every time it is read.
+   */
+  private static final class ManualTicker extends Ticker {
+    private final AtomicLong nanos = new AtomicLong();
+    private volatile long step;
+
+    @Override
+    public long read() {
+      return this.nanos.getAndAdd(this.step);
+    }
+
+    void advance(final long nanos) {
+      this.nanos.addAndGet(nanos);
+    }
+
+    void step(final long step) {
+      this.step = step;
+    }
+  }
+}
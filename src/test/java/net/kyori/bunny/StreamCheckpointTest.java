@@ -0,0 +1,100 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class StreamCheckpointTest {
+  private static final long INTERVAL = TimeUnit.HOURS.toMillis(1);
+  private final Bunny bunny = new Broker().bunny();
+  private Path directory;
+
+  @BeforeEach
+  void createDirectory() throws IOException {
+    this.directory = Files.createTempDirectory("bunny");
+  }
+
+  @AfterEach
+  void deleteDirectory() throws IOException {
+    try(final Stream<Path> paths = Files.walk(this.directory)) {
+      paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Test
+  void testInitial() {
+    final StreamCheckpoint checkpoint = new StreamCheckpoint(this.bunny, null, INTERVAL);
+    assertSame(StreamOffset.first(), checkpoint.resume(StreamOffset.first()));
+    checkpoint.received(0);
+    // nothing has been processed yet
+    assertSame(StreamOffset.first(), checkpoint.resume(StreamOffset.first()));
+  }
+
+  @Test
+  void testOutOfOrder() {
+    final StreamCheckpoint checkpoint = new StreamCheckpoint(this.bunny, null, INTERVAL);
+    checkpoint.received(1);
+    checkpoint.received(2);
+    checkpoint.received(3);
+    checkpoint.processed(3);
+    // offsets 1 and 2 are still in flight, so consuming resumes from the first of them
+    assertEquals(1L, checkpoint.resume(StreamOffset.first()).argument());
+    checkpoint.processed(1);
+    assertEquals(2L, checkpoint.resume(StreamOffset.first()).argument());
+    checkpoint.processed(2);
+    assertEquals(4L, checkpoint.resume(StreamOffset.first()).argument());
+  }
+
+  @Test
+  void testWrite() throws IOException {
+    final Path file = this.directory.resolve("checkpoint");
+    final StreamCheckpoint checkpoint = new StreamCheckpoint(this.bunny, file, INTERVAL);
+    checkpoint.start();
+    checkpoint.received(7);
+    checkpoint.processed(7);
+    checkpoint.stop();
+    assertEquals("7", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    // a new process resumes just after the checkpoint
+    assertEquals(8L, new StreamCheckpoint(this.bunny, file, INTERVAL).resume(StreamOffset.first()).argument());
+  }
+
+  @Test
+  void testUnreadable() throws IOException {
+    final Path file = Files.write(this.directory.resolve("checkpoint"), "garbage".getBytes(StandardCharsets.UTF_8));
+    assertSame(StreamOffset.next(), new StreamCheckpoint(this.bunny, file, INTERVAL).resume(StreamOffset.next()));
+  }
+}
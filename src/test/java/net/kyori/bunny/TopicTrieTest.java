@@ -0,0 +1,100 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TopicTrieTest {
+  @Test
+  void testExact() {
+    final TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("a.b", "ab");
+    assertEquals(Collections.singleton("ab"), trie.match("a.b"));
+    assertTrue(trie.match("a").isEmpty());
+    assertTrue(trie.match("a.b.c").isEmpty());
+  }
+
+  @Test
+  void testStar() {
+    final TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("a.*", "star");
+    assertEquals(Collections.singleton("star"), trie.match("a.b"));
+    assertEquals(Collections.singleton("star"), trie.match("a."));
+    assertTrue(trie.match("a").isEmpty());
+    assertTrue(trie.match("a.b.c").isEmpty());
+  }
+
+  @Test
+  void testHash() {
+    final TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("a.#", "hash");
+    trie.add("#.c", "suffix");
+    trie.add("#", "all");
+    assertEquals(new HashSet<>(Arrays.asList("hash", "all")), trie.match("a"));
+    assertEquals(new HashSet<>(Arrays.asList("hash", "suffix", "all")), trie.match("a.b.c"));
+    assertEquals(new HashSet<>(Arrays.asList("suffix", "all")), trie.match("c"));
+    assertEquals(Collections.singleton("all"), trie.match(""));
+  }
+
+  @Test
+  void testRoot() {
+    final TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("", "root");
+    assertEquals(Collections.singleton("root"), trie.match(""));
+    assertTrue(trie.match("a").isEmpty());
+  }
+
+  @Test
+  void testRemove() {
+    final TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("a.*", "first");
+    trie.add("a.*", "second");
+    trie.remove("a.*", "first");
+    trie.remove("b.*", "second");
+    assertEquals(Collections.singleton("second"), trie.match("a.b"));
+  }
+
+  @Test
+  void testPrune() {
+    final TopicTrie<String> trie = new TopicTrie<>();
+    trie.add("a.b.c", "abc");
+    trie.add("a.#", "hash");
+    trie.remove("a.b.c", "abc");
+    assertEquals(Collections.singleton("hash"), trie.match("a.b.c"));
+    assertFalse(trie.isEmpty());
+    // nodes left without values or children are removed, up to the root
+    trie.remove("a.#", "hash");
+    assertTrue(trie.isEmpty());
+    trie.add("a.b", "ab");
+    assertEquals(Collections.singleton("ab"), trie.match("a.b"));
+  }
+}
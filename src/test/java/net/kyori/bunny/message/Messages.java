@@ -0,0 +1,49 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny.message;
+
+import com.google.inject.Binder;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+/**
+ * Registers messages for tests.
+ */
+public final class Messages {
+  private Messages() {
+  }
+
+  /**
+   * Registers messages.
+   *
+   * @param binder the binder
+   * @param types the message classes
+   */
+  @SafeVarargs
+  public static void bind(final @NonNull Binder binder, final @NonNull Class<? extends Message>... types) {
+    final MessageBinder messages = new MessageBinder(binder);
+    for(final Class<? extends Message> type : types) {
+      messages.addBinding().toInstance(new MessageMeta<>(type));
+    }
+  }
+}
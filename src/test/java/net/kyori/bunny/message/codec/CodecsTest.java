@@ -0,0 +1,148 @@
+/*
+ * This file is part of bunny, licensed under the MIT License.
+ *
+ * Copyright (c) 2017-2018 KyoriPowered
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.kyori.bunny.message.codec;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.LongSerializationPolicy;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.Expose;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.annotations.Since;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import net.kyori.bunny.message.Message;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CodecsTest {
+  @Test
+  void testFind() {
+    final TypeAdapter<Sample> codec = Codecs.find(new Gson(), Sample.class);
+    assertNotNull(codec);
+    assertEquals(Codecs.name(Sample.class), codec.getClass().getName());
+  }
+
+  @Test
+  void testParity() throws IOException {
+    this.assertParity(new Gson());
+    this.assertParity(new GsonBuilder().serializeNulls().create());
+  }
+
+  @Test
+  void testRead() throws IOException {
+    final Gson gson = new Gson();
+    final TypeAdapter<Sample> codec = Codecs.find(gson, Sample.class);
+    assertNotNull(codec);
+    final String json = "{\"count\":1,\"total\":2,\"n\":\"a\",\"tags\":[\"b\"],\"flag\":true,\"unknown\":{}}";
+    assertEquals(gson.toJson(gson.fromJson(json, Sample.class)), gson.toJson(codec.fromJson(json)));
+    final String alternate = "{\"label\":\"a\"}";
+    assertEquals(gson.toJson(gson.fromJson(alternate, Sample.class)), gson.toJson(codec.fromJson(alternate)));
+  }
+
+  @Test
+  void testRegisteredAdapter() {
+    final Gson gson = new GsonBuilder().registerTypeAdapter(Sample.class, new TypeAdapter<Sample>() {
+      @Override
+      public void write(final JsonWriter out, final Sample value) throws IOException {
+        out.nullValue();
+      }
+
+      @Override
+      public Sample read(final JsonReader in) throws IOException {
+        in.skipValue();
+        return null;
+      }
+    }).create();
+    assertNull(Codecs.find(gson, Sample.class));
+  }
+
+  @Test
+  void testExclusion() {
+    assertNull(Codecs.find(new GsonBuilder().excludeFieldsWithoutExposeAnnotation().create(), Sample.class));
+    assertNull(Codecs.find(new GsonBuilder().setVersion(1).create(), Sample.class));
+    assertNull(Codecs.find(new GsonBuilder().excludeFieldsWithModifiers().create(), Sample.class));
+  }
+
+  @Test
+  void testNaming() {
+    assertNull(Codecs.find(new GsonBuilder().setFieldNamingPolicy(FieldNamingPolicy.UPPER_CAMEL_CASE).create(), Sample.class));
+  }
+
+  @Test
+  void testLongSerialization() {
+    assertNull(Codecs.find(new GsonBuilder().setLongSerializationPolicy(LongSerializationPolicy.STRING).create(), Sample.class));
+  }
+
+  private void assertParity(final Gson gson) throws IOException {
+    final TypeAdapter<Sample> codec = Codecs.find(gson, Sample.class);
+    assertNotNull(codec);
+    for(final Sample sample : Arrays.asList(new Sample(), Sample.filled())) {
+      final String expected = gson.toJson(sample);
+      assertEquals(expected, write(gson, codec, sample));
+      assertEquals(expected, gson.toJson(codec.fromJson(expected)));
+    }
+  }
+
+  // written the same way messages are encoded, so the serialize nulls setting applies
+  private static <T> String write(final Gson gson, final TypeAdapter<T> adapter, final T value) throws IOException {
+    final StringWriter string = new StringWriter();
+    final JsonWriter writer = gson.newJsonWriter(string);
+    adapter.write(writer, value);
+    writer.flush();
+    return string.toString();
+  }
+
+  static class Sample implements Message {
+    int count;
+    long total;
+    @SerializedName(value = "n", alternate = "label") String name;
+    List<String> tags;
+    boolean flag;
+    @Expose @Since(2) Double ratio;
+    Object extra;
+    transient String ignored = "ignored";
+
+    static Sample filled() {
+      final Sample sample = new Sample();
+      sample.count = 1;
+      sample.total = Long.MAX_VALUE;
+      sample.name = "name";
+      sample.tags = Arrays.asList("a", "b");
+      sample.flag = true;
+      sample.ratio = 0.5;
+      sample.extra = "extra";
+      return sample;
+    }
+  }
+}